@@ -0,0 +1,89 @@
+package ctrmap.stdlib.crypto;
+
+import ctrmap.stdlib.fs.FSFile;
+import ctrmap.stdlib.io.base.iface.ReadableStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SHA-1 content hashing of files and byte arrays, used for detecting changes
+ * in file data.
+ */
+public class ContentHash {
+
+	public static final String ALGORITHM = "SHA-1";
+
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * Creates a new MessageDigest of the content hash algorithm.
+	 *
+	 * @return
+	 */
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException ex) {
+			//SHA-1 is required to be present on every Java platform
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Hashes a byte array.
+	 *
+	 * @param data The data to hash.
+	 * @return Hexadecimal hash string of the data.
+	 */
+	public static String hash(byte[] data) {
+		return toHexString(createDigest().digest(data));
+	}
+
+	/**
+	 * Hashes the contents of a file without loading it into memory as a whole.
+	 *
+	 * @param fsf The file to hash.
+	 * @return Hexadecimal hash string of the file data, or null if the file is
+	 * not a readable file.
+	 */
+	public static String hash(FSFile fsf) {
+		if (fsf == null || !fsf.isFile()) {
+			return null;
+		}
+		MessageDigest md = createDigest();
+		try (ReadableStream in = fsf.getInputStream()) {
+			byte[] buf = new byte[BUFFER_SIZE];
+			int remaining = in.getLength();
+			while (remaining > 0) {
+				int read = in.read(buf, 0, Math.min(buf.length, remaining));
+				if (read <= 0) {
+					break;
+				}
+				md.update(buf, 0, read);
+				remaining -= read;
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(ContentHash.class.getName()).log(Level.SEVERE, null, ex);
+			return null;
+		}
+		return toHexString(md.digest());
+	}
+
+	/**
+	 * Converts a digest to a lowercase hexadecimal string.
+	 *
+	 * @param digest The digest bytes.
+	 * @return
+	 */
+	public static String toHexString(byte[] digest) {
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -6,11 +6,21 @@ import ctrmap.stdlib.formats.zip.ZipArchive;
 import ctrmap.stdlib.fs.FSFile;
 import ctrmap.stdlib.fs.FSUtil;
 import ctrmap.stdlib.fs.accessors.FSFileAdapter;
+import ctrmap.stdlib.thread.ThreadingUtils;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Relocatable Program Zip
@@ -138,11 +148,27 @@ public class RPZ extends FSFileAdapter {
 	}
 
 	/**
-	 * Installs the RPZ using an IRPZHandler.
+	 * Installs the RPZ using an IRPZHandler, with the default parallelism.
 	 * @param handler The handler/installer to use.
 	 * @return True if the installation succeeded.
 	 */
 	public boolean install(IRPZHandler handler) {
+		return install(handler, FSUtil.DEFAULT_TREE_OP_PARALLELISM);
+	}
+
+	/**
+	 * Installs the RPZ using an IRPZHandler.
+	 *
+	 * The modules to install are resolved and checked first. Content files of
+	 * all modules are then copied concurrently, and each module RPM is
+	 * installed once its content and all of its dependencies are installed.
+	 * Calls to the handler are never made concurrently.
+	 *
+	 * @param handler The handler/installer to use.
+	 * @param parallelism Maximum number of content files copied at once.
+	 * @return True if the installation succeeded.
+	 */
+	public boolean install(IRPZHandler handler, int parallelism) {
 		try {
 			int presentVersion = handler.getInstalledProductVersion(getProductId());
 			if (presentVersion != -1) {
@@ -186,7 +212,12 @@ public class RPZ extends FSFileAdapter {
 			targetModuleInfo = findModuleByTarget(moduleInfos.get(getProductId()), desiredTarget);
 
 			if (targetModuleInfo != null) {
-				return installModule(targetModuleInfo, moduleInfos, handler);
+				InstallPlan plan = new InstallPlan();
+				ModuleInstall target = planModule(targetModuleInfo, moduleInfos, handler, plan);
+				if (target == null) {
+					return false;
+				}
+				return executePlan(plan, target, handler, parallelism);
 			} else {
 				handler.throwError(IRPZHandler.RPZErrorCode.TARGET_NOT_SUPPORTED);
 				return false;
@@ -209,12 +240,26 @@ public class RPZ extends FSFileAdapter {
 		return null;
 	}
 
-	private boolean installModule(RPZModuleInfo module, Map<String, List<RPZModuleInfo>> modules, IRPZHandler handler) {
+	/**
+	 * Resolves a module and its dependencies and checks its content, adding
+	 * them to the plan in dependency order.
+	 *
+	 * @return The planned module, or null if the installation should be
+	 * aborted.
+	 */
+	private ModuleInstall planModule(RPZModuleInfo module, Map<String, List<RPZModuleInfo>> modules, IRPZHandler handler, InstallPlan plan) {
+		ModuleInstall planned = plan.modules.get(module);
+		if (planned != null) {
+			return planned;
+		}
+		ModuleInstall install = new ModuleInstall(module);
+		plan.inProgress.add(module);
+
 		if (module.contentInfo != null) {
 			FSFile contentInfoFile = meta.getChild(module.contentInfo.ymlPath);
 			if (!contentInfoFile.exists()) {
 				if (handler.throwError(IRPZHandler.RPZErrorCode.FILE_NOT_FOUND, "Content info " + module.contentInfo.ymlPath + " not found!")) {
-					return false;
+					return null;
 				}
 			}
 			RPZContentInfo contentInfo = new RPZContentInfo(contentInfoFile);
@@ -231,24 +276,24 @@ public class RPZ extends FSFileAdapter {
 
 				if (cntTgt.exists() && !cntTgt.canWrite()) {
 					if (handler.throwError(IRPZHandler.RPZErrorCode.FILE_NOT_FOUND, "Could not open file " + cntTgt + " for write access!")) {
-						return false;
+						return null;
 					}
 					continue;
 				}
 				if (!cntSrc.exists()) {
 					if (handler.throwError(IRPZHandler.RPZErrorCode.FILE_NOT_FOUND, "Could not open file " + cntTgt + " for write access!")) {
-						return false;
+						return null;
 					}
 					continue;
 				}
 				if (!cntTgt.exists() && (cntSrc.isDirectory() != cntTgt.isDirectory())) {
 					if (handler.throwError(IRPZHandler.RPZErrorCode.FILE_NOT_FOUND, "Source and target content files are not of the same file/directory class.")) {
-						return false;
+						return null;
 					}
 					continue;
 				}
 
-				FSUtil.copy(cntSrc, cntTgt);
+				addContent(install, cntSrc, cntTgt);
 			}
 		}
 
@@ -267,20 +312,26 @@ public class RPZ extends FSFileAdapter {
 							errorResult = handler.throwError(IRPZHandler.RPZErrorCode.DEPENDENCY_NOT_RESOLVED, "Module info for dependency " + dep.productId + " not found.");
 						}
 						if (errorResult) {
-							return false;
+							return null;
 						}
 					} else {
 						if (!depModuleInfo.isDependencyModule) {
 							if (handler.throwError(IRPZHandler.RPZErrorCode.DEPENDENCY_NOT_RESOLVED, "Module info for dependency is not flagged as a dependency. (" + dep.productId + ")")) {
-								return false;
+								return null;
 							}
 							continue;
 						}
-						if (!installModule(depModuleInfo, modules, handler)) {
-							if (handler.throwError(IRPZHandler.RPZErrorCode.RPM_INSTALL_FAILED, "Could not install dependency " + dep.productId)) {
-								return false;
+						if (plan.inProgress.contains(depModuleInfo)) {
+							if (handler.throwError(IRPZHandler.RPZErrorCode.DEPENDENCY_NOT_RESOLVED, "Circular dependency on " + dep.productId + ".")) {
+								return null;
 							}
+							continue;
+						}
+						ModuleInstall depInstall = planModule(depModuleInfo, modules, handler, plan);
+						if (depInstall == null) {
+							return null;
 						}
+						install.dependencies.add(depInstall);
 					}
 				}
 			} else {
@@ -301,9 +352,101 @@ public class RPZ extends FSFileAdapter {
 
 				if (!pass) {
 					if (handler.throwError(IRPZHandler.RPZErrorCode.FILE_NOT_FOUND, "Source and target content files are not of the same file/directory class.")) {
-						return false;
+						return null;
+					}
+				}
+			}
+		}
+
+		plan.inProgress.remove(module);
+		plan.modules.put(module, install);
+		return install;
+	}
+
+	private static void addContent(ModuleInstall install, FSFile source, FSFile target) {
+		//Directories are split into single files so that they are copied concurrently as well
+		if (source.isDirectory()) {
+			install.directories.add(target);
+			for (FSFile child : source.listFiles()) {
+				addContent(install, child, target.getChild(child.getName()));
+			}
+		} else {
+			install.files.add(new ContentCopy(source, target));
+		}
+	}
+
+	private boolean executePlan(InstallPlan plan, ModuleInstall target, IRPZHandler handler, int parallelism) {
+		AtomicBoolean aborted = new AtomicBoolean(false);
+
+		//Modules are planned in dependency order, so later modules take precedence when they write the same file
+		Map<String, ContentCopy> copies = new LinkedHashMap<>();
+		for (ModuleInstall install : plan.modules.values()) {
+			for (FSFile dir : install.directories) {
+				dir.mkdirs();
+			}
+			for (ContentCopy copy : install.files) {
+				copies.remove(copy.target.getPath());
+				copies.put(copy.target.getPath(), copy);
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+		try {
+			Map<ContentCopy, CompletableFuture<Void>> copyFutures = new HashMap<>();
+			for (ContentCopy copy : copies.values()) {
+				copyFutures.put(copy, CompletableFuture.runAsync(() -> {
+					if (!aborted.get()) {
+						FSFile parent = copy.target.getParent();
+						if (parent != null && !parent.exists()) {
+							parent.mkdirs();
+						}
+						FSUtil.copy(copy.source, copy.target);
+					}
+				}, executor));
+			}
+
+			//Read by the workers while it is still being filled
+			Map<ModuleInstall, CompletableFuture<Boolean>> rpmFutures = new ConcurrentHashMap<>();
+			for (ModuleInstall install : plan.modules.values()) {
+				List<CompletableFuture<?>> prerequisites = new ArrayList<>();
+				for (ContentCopy copy : install.files) {
+					CompletableFuture<Void> f = copyFutures.get(copy);
+					if (f != null) {
+						prerequisites.add(f);
 					}
 				}
+				for (ModuleInstall dep : install.dependencies) {
+					prerequisites.add(rpmFutures.get(dep));
+				}
+				CompletableFuture<Boolean> rpmFuture = CompletableFuture.allOf(prerequisites.toArray(new CompletableFuture<?>[prerequisites.size()])).thenApplyAsync((v) -> {
+					synchronized (handler) {
+						return installModuleRPM(install, rpmFutures, handler, aborted);
+					}
+				}, executor);
+				rpmFutures.put(install, rpmFuture);
+			}
+
+			return rpmFutures.get(target).get() && !aborted.get();
+		} catch (InterruptedException | ExecutionException ex) {
+			handler.throwError(IRPZHandler.RPZErrorCode.UNKNOWN, ex.getMessage());
+			ex.printStackTrace();
+			return false;
+		} finally {
+			ThreadingUtils.shutdownWaitService(executor);
+		}
+	}
+
+	private boolean installModuleRPM(ModuleInstall install, Map<ModuleInstall, CompletableFuture<Boolean>> rpmFutures, IRPZHandler handler, AtomicBoolean aborted) {
+		if (aborted.get()) {
+			return false;
+		}
+		RPZModuleInfo module = install.module;
+		for (ModuleInstall dep : install.dependencies) {
+			if (!rpmFutures.get(dep).join()) {
+				if (handler.throwError(IRPZHandler.RPZErrorCode.RPM_INSTALL_FAILED, "Could not install dependency " + dep.module.productId)) {
+					aborted.set(true);
+					return false;
+				}
 			}
 		}
 
@@ -327,6 +470,35 @@ public class RPZ extends FSFileAdapter {
 		return true;
 	}
 
+	private static class InstallPlan {
+
+		public final Map<RPZModuleInfo, ModuleInstall> modules = new LinkedHashMap<>();
+		public final Set<RPZModuleInfo> inProgress = new HashSet<>();
+	}
+
+	private static class ModuleInstall {
+
+		public final RPZModuleInfo module;
+		public final List<ModuleInstall> dependencies = new ArrayList<>();
+		public final List<FSFile> directories = new ArrayList<>();
+		public final List<ContentCopy> files = new ArrayList<>();
+
+		public ModuleInstall(RPZModuleInfo module) {
+			this.module = module;
+		}
+	}
+
+	private static class ContentCopy {
+
+		public final FSFile source;
+		public final FSFile target;
+
+		public ContentCopy(FSFile source, FSFile target) {
+			this.source = source;
+			this.target = target;
+		}
+	}
+
 	/**
 	 * Checks if a directory/archive can be read as an RPZ.
 	 * @param fsf The directory or a ZIP archive to check.
@@ -2,16 +2,34 @@ package ctrmap.stdlib.formats.zip;
 
 import ctrmap.stdlib.fs.FSFile;
 import ctrmap.stdlib.fs.FSUtil;
+import ctrmap.stdlib.fs.VFSFile;
+import ctrmap.stdlib.fs.accessors.BlobStoreFile;
+import ctrmap.stdlib.fs.accessors.DecompressedMemberCache;
 import ctrmap.stdlib.fs.accessors.DiskFile;
 import ctrmap.stdlib.fs.accessors.FSFileAdapter;
+import ctrmap.stdlib.fs.accessors.MemoryFile;
+import ctrmap.stdlib.io.base.iface.IOStream;
 import ctrmap.stdlib.io.base.iface.WriteableStream;
+import ctrmap.stdlib.io.base.impl.access.FileStream;
+import ctrmap.stdlib.io.base.impl.access.MemoryStream;
+import ctrmap.stdlib.io.base.impl.ext.BufferedIOStream;
+import ctrmap.stdlib.thread.ThreadingUtils;
+import ctrmap.stdlib.util.ProgressMonitor;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -27,7 +45,11 @@ public class ZipArchive extends FSFileAdapter {
 
 	protected List<ZipEntry> entries = new ArrayList<>();
 
+	private final Map<String, ZipEntry> entriesByPath = new HashMap<>();
+	private final Map<String, List<ZipEntry>> entriesByParent = new HashMap<>();
+
 	private ZipFile zf;
+	private ZipDirectoryReader directory;
 
 	private final boolean allowsDirectAccess;
 
@@ -43,46 +65,228 @@ public class ZipArchive extends FSFileAdapter {
 					entries.add(es.nextElement());
 				}
 			} else {
-				ZipInputStream in = new ZipInputStream(source.getNativeInputStream());
-				ZipEntry e;
-				while ((e = in.getNextEntry()) != null) {
-					entries.add(e);
+				directory = openDirectory(source);
+				if (directory != null) {
+					entries.addAll(directory.getEntries());
+				} else {
+					ZipInputStream in = new ZipInputStream(source.getNativeInputStream());
+					ZipEntry e;
+					while ((e = in.getNextEntry()) != null) {
+						entries.add(e);
+					}
+					in.close();
 				}
-				in.close();
 			}
 		} catch (IOException ex) {
 			Logger.getLogger(ZipArchive.class.getName()).log(Level.SEVERE, null, ex);
 		}
+		indexEntries();
+	}
+
+	private static ZipDirectoryReader openDirectory(FSFile source) {
+		IOStream io = openReadOnlyIO(source);
+		if (io == null) {
+			return null;
+		}
+		try {
+			return new ZipDirectoryReader(io);
+		} catch (IOException ex) {
+			//Not readable from the central directory, the entries can still be scanned sequentially
+			System.out.println("Could not read the central directory of " + source + ": " + ex.getMessage());
+			try {
+				io.close();
+			} catch (IOException ex1) {
+				Logger.getLogger(ZipArchive.class.getName()).log(Level.SEVERE, null, ex1);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a seekable stream of an archive without write access, so that
+	 * reading it does not go through the change tracking of VFSFile.getIO or
+	 * rewrite a BlobStoreFile on close.
+	 *
+	 * @param source The archive file.
+	 * @return The stream, or null if the file can only be read sequentially.
+	 */
+	private static IOStream openReadOnlyIO(FSFile source) {
+		FSFile file = source;
+		while (file instanceof VFSFile) {
+			file = ((VFSFile) file).getExistingFile();
+		}
+		if (file instanceof BlobStoreFile) {
+			file = ((BlobStoreFile) file).getBlob();
+		}
+		if (file instanceof DiskFile) {
+			FileStream stream = FileStream.createReadOnly(((DiskFile) file).getFile());
+			return stream == null ? null : new BufferedIOStream(stream);
+		} else if (file instanceof MemoryFile) {
+			return new MemoryStream(file.getBytes());
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the path and directory lookup tables from the entry list. Must be
+	 * called again if the entry list is changed.
+	 */
+	protected void indexEntries() {
+		entriesByPath.clear();
+		entriesByParent.clear();
+		for (ZipEntry e : entries) {
+			String path = stripLastSlash(e.getName());
+			entriesByPath.putIfAbsent(path, e);
+			entriesByParent.computeIfAbsent(getParentKey(path), (k) -> new ArrayList<>()).add(e);
+		}
+	}
+
+	private static String getParentKey(String path) {
+		String parent = FSUtil.getParentFilePath(path);
+		return parent == null ? "" : parent;
 	}
 
 	public static ZipArchive extractZipToFile(FSFile target, FSFile zip) {
+		ZipArchive arc = new ZipArchive(zip);
+		arc.extract(target, null);
+		arc.close();
+		return null;
+	}
+
+	/**
+	 * Extracts all entries of the archive using the default parallelism.
+	 *
+	 * @param target The directory to extract to.
+	 * @param monitor An optional progress monitor.
+	 * @return True if all entries were extracted.
+	 */
+	public boolean extract(FSFile target, ProgressMonitor monitor) {
+		return extract(target, FSUtil.DEFAULT_TREE_OP_PARALLELISM, monitor);
+	}
+
+	/**
+	 * Extracts all entries of the archive. Entries are inflated concurrently
+	 * and streamed to their target files.
+	 *
+	 * @param target The directory to extract to.
+	 * @param parallelism Maximum number of worker threads.
+	 * @param monitor An optional progress monitor.
+	 * @return True if all entries were extracted.
+	 */
+	public boolean extract(FSFile target, int parallelism, ProgressMonitor monitor) {
+		if (monitor != null) {
+			monitor.setProgressTitle("Extracting " + getName());
+			monitor.setProgressPercentage(0);
+		}
+		if (zf == null && directory == null) {
+			//Entries can not be read independently
+			return extractSequential(target, monitor);
+		}
+
+		List<ZipEntry> files = new ArrayList<>();
+		for (ZipEntry e : entries) {
+			if (!isSafeEntryName(e.getName())) {
+				System.out.println("Skipping zip entry outside of the target directory: " + e.getName());
+			} else if (e.isDirectory()) {
+				target.getChild(e.getName()).mkdirs();
+			} else {
+				target.getChild(e.getName()).getParent().mkdirs();
+				files.add(e);
+			}
+		}
+
+		AtomicInteger done = new AtomicInteger();
+		AtomicBoolean success = new AtomicBoolean(true);
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (ZipEntry e : files) {
+			tasks.add(() -> {
+				FSFile out = target.getChild(e.getName());
+				try (InputStream in = openEntryInputStream(e)) {
+					if (in == null) {
+						throw new IOException("Could not open zip entry " + e.getName());
+					}
+					copyEntry(in, out);
+				} catch (IOException ex) {
+					System.out.println("Failed to extract zip entry " + e.getName());
+					Logger.getLogger(ZipArchive.class.getName()).log(Level.SEVERE, null, ex);
+					success.set(false);
+				}
+				int count = done.incrementAndGet();
+				if (monitor != null) {
+					synchronized (monitor) {
+						monitor.setProgressSubTitle(e.getName());
+						monitor.setProgressPercentage((int) (count / (float) files.size() * 100));
+					}
+				}
+				return null;
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, files.size())));
 		try {
-			ZipInputStream in = new ZipInputStream(zip.getNativeInputStream());
+			executor.invokeAll(tasks);
+		} catch (InterruptedException ex) {
+			Logger.getLogger(ZipArchive.class.getName()).log(Level.SEVERE, null, ex);
+			success.set(false);
+		} finally {
+			ThreadingUtils.shutdownWaitService(executor);
+		}
+		return success.get();
+	}
 
+	private boolean extractSequential(FSFile target, ProgressMonitor monitor) {
+		try {
+			ZipInputStream in = new ZipInputStream(source.getNativeInputStream());
+
+			int count = 0;
 			ZipEntry e;
 			while ((e = in.getNextEntry()) != null) {
+				if (!isSafeEntryName(e.getName())) {
+					System.out.println("Skipping zip entry outside of the target directory: " + e.getName());
+					continue;
+				}
 				FSFile newFile = target.getChild(e.getName());
 				if (e.isDirectory()) {
 					newFile.mkdirs();
 				} else {
 					newFile.getParent().mkdirs();
-					WriteableStream out = newFile.getOutputStream();
-
-					byte[] buffer = new byte[32768];
-					int read;
-					while ((read = in.read(buffer)) != -1) {
-						out.write(buffer, 0, read);
-					}
-
-					out.close();
+					copyEntry(in, newFile);
+				}
+				count++;
+				if (monitor != null && !entries.isEmpty()) {
+					monitor.setProgressSubTitle(e.getName());
+					monitor.setProgressPercentage((int) (count / (float) entries.size() * 100));
 				}
 			}
 
 			in.close();
+			return true;
 		} catch (IOException ex) {
 			Logger.getLogger(ZipArchive.class.getName()).log(Level.SEVERE, null, ex);
 		}
-		return null;
+		return false;
+	}
+
+	private static void copyEntry(InputStream in, FSFile target) throws IOException {
+		WriteableStream out = target.getOutputStream();
+		try {
+			byte[] buffer = new byte[32768];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static boolean isSafeEntryName(String name) {
+		for (String elem : name.replace('\\', '/').split("/")) {
+			if (elem.equals("..")) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	public static boolean isZip(FSFile fsf) {
@@ -110,11 +314,11 @@ public class ZipArchive extends FSFileAdapter {
 	}
 
 	public List<FSFile> listFilesByParentPath(String parentPath) {
-		parentPath = stripLastSlash(parentPath);
+		parentPath = parentPath == null ? "" : stripLastSlash(parentPath);
 		List<FSFile> l = new ArrayList<>();
-		for (ZipEntry e : entries) {
-			String nameWithoutEndSlash = stripLastSlash(e.getName());
-			if (Objects.equals(FSUtil.getParentFilePath(nameWithoutEndSlash), parentPath)) {
+		List<ZipEntry> children = entriesByParent.get(parentPath);
+		if (children != null) {
+			for (ZipEntry e : children) {
 				l.add(new ZipEntryFile(this, e.getName()));
 			}
 		}
@@ -130,25 +334,31 @@ public class ZipArchive extends FSFileAdapter {
 	}
 
 	public ZipEntry getEntryForPath(String path) {
-		path = stripLastSlash(path);
-		for (ZipEntry e : entries) {
-			String cmpName = stripLastSlash(e.getName());
-			
-			if (cmpName.equals(path)) {
-				return e;
-			}
-		}
-		return null;
+		return entriesByPath.get(stripLastSlash(path));
 	}
 
 	InputStream getEntryInputStream(ZipEntry entry) {
 		if (entry == null) {
 			return null;
 		}
+		//Stored entries are read directly, there is nothing to save by caching them
+		DecompressedMemberCache cache = DecompressedMemberCache.getShared();
+		if (cache != null && entry.getMethod() != ZipEntry.STORED) {
+			byte[] data = cache.get(source, entry.getName());
+			if (data != null) {
+				return new ByteArrayInputStream(data);
+			}
+			return cache.capture(source, entry.getName(), entry.getSize(), openEntryInputStream(entry));
+		}
+		return openEntryInputStream(entry);
+	}
+
+	private InputStream openEntryInputStream(ZipEntry entry) {
 		try {
 			if (zf != null) {
 				return zf.getInputStream(entry);
-
+			} else if (directory != null && entry instanceof ZipDirectoryEntry) {
+				return directory.getInputStream((ZipDirectoryEntry) entry);
 			} else {
 				//VERY SLOW. Do not use unless really needed
 				ZipInputStream in = new ZipInputStream(source.getNativeInputStream());
@@ -165,4 +375,21 @@ public class ZipArchive extends FSFileAdapter {
 		}
 		return null;
 	}
-}
+
+	/**
+	 * Closes the handles used for reading the archive. Entries can not be read
+	 * afterwards.
+	 */
+	public void close() {
+		try {
+			if (zf != null) {
+				zf.close();
+			}
+			if (directory != null) {
+				directory.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(ZipArchive.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,22 @@
+package ctrmap.stdlib.formats.zip;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * A ZipEntry read from the central directory of an archive, carrying the
+ * position of its data in the archive.
+ */
+public class ZipDirectoryEntry extends ZipEntry {
+
+	/**
+	 * Offset of the local file header of the entry.
+	 */
+	public final long localHeaderOffset;
+
+	long dataOffset = -1;
+
+	public ZipDirectoryEntry(String name, long localHeaderOffset) {
+		super(name);
+		this.localHeaderOffset = localHeaderOffset;
+	}
+}
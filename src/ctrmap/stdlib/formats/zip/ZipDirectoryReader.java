@@ -0,0 +1,377 @@
+package ctrmap.stdlib.formats.zip;
+
+import ctrmap.stdlib.io.base.iface.IOStream;
+import ctrmap.stdlib.io.base.impl.ext.data.DataIOStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Random access reader for zip archives on any seekable stream.
+ *
+ * The entry table is read from the central directory at the end of the
+ * archive, and each entry is read by seeking directly to its data, so that
+ * reading an entry does not require scanning the archive.
+ *
+ * All entry streams share the underlying stream, and can be read from
+ * multiple threads.
+ */
+public class ZipDirectoryReader {
+
+	private static final int SIG_LOCAL_HEADER = 0x04034B50;
+	private static final int SIG_CENTRAL_HEADER = 0x02014B50;
+	private static final int SIG_END_OF_CENTRAL_DIR = 0x06054B50;
+	private static final int SIG_ZIP64_END_OF_CENTRAL_DIR = 0x06064B50;
+	private static final int SIG_ZIP64_END_OF_CENTRAL_DIR_LOCATOR = 0x07064B50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+	private static final int ZIP64_END_OF_CENTRAL_DIR_SIZE = 56;
+	private static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIZE = 20;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	private final IOStream io;
+
+	private final List<ZipDirectoryEntry> entries = new ArrayList<>();
+
+	/**
+	 * Reads the central directory of a zip archive.
+	 *
+	 * @param io A seekable stream of the archive. It is closed by close().
+	 * @throws IOException If the stream is not a valid zip archive.
+	 */
+	public ZipDirectoryReader(IOStream io) throws IOException {
+		this.io = io;
+		readCentralDirectory();
+	}
+
+	private void readCentralDirectory() throws IOException {
+		int length = io.getLength();
+		int tailSize = Math.min(length, END_OF_CENTRAL_DIR_SIZE + MAX_COMMENT_SIZE);
+		byte[] tail = readAt(length - tailSize, tailSize);
+		DataIOStream tailIn = new DataIOStream(tail);
+
+		int eocd = -1;
+		for (int pos = tailSize - END_OF_CENTRAL_DIR_SIZE; pos >= 0; pos--) {
+			tailIn.seek(pos);
+			if (tailIn.readInt() == SIG_END_OF_CENTRAL_DIR) {
+				eocd = pos;
+				break;
+			}
+		}
+		if (eocd == -1) {
+			throw new ZipException("End of central directory not found.");
+		}
+
+		tailIn.seek(eocd + 10);
+		long entryCount = tailIn.readShort() & 0xFFFF;
+		long cdSize = tailIn.readInt() & 0xFFFFFFFFL;
+		long cdOffset = tailIn.readInt() & 0xFFFFFFFFL;
+
+		//Zip64 archives store the real values in a separate record, located right before the end of central directory
+		int locator = eocd - ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIZE;
+		if (locator >= 0) {
+			tailIn.seek(locator);
+			if (tailIn.readInt() == SIG_ZIP64_END_OF_CENTRAL_DIR_LOCATOR) {
+				tailIn.skipBytes(4);
+				long zip64EocdOffset = tailIn.readLong();
+				DataIOStream zip64Eocd = new DataIOStream(readAt(zip64EocdOffset, ZIP64_END_OF_CENTRAL_DIR_SIZE));
+				if (zip64Eocd.readInt() != SIG_ZIP64_END_OF_CENTRAL_DIR) {
+					throw new ZipException("Invalid Zip64 end of central directory.");
+				}
+				zip64Eocd.seek(32);
+				entryCount = zip64Eocd.readLong();
+				cdSize = zip64Eocd.readLong();
+				cdOffset = zip64Eocd.readLong();
+			}
+		}
+
+		if (cdSize < 0 || cdOffset < 0 || cdOffset + cdSize > length || cdSize > Integer.MAX_VALUE || entryCount < 0) {
+			throw new ZipException("Invalid central directory.");
+		}
+
+		DataIOStream in = new DataIOStream(readAt(cdOffset, (int) cdSize));
+		for (long i = 0; i < entryCount; i++) {
+			if (in.readInt() != SIG_CENTRAL_HEADER) {
+				throw new ZipException("Invalid central directory header of entry " + i);
+			}
+			in.skipBytes(4);
+			int flags = in.readShort() & 0xFFFF;
+			int method = in.readShort() & 0xFFFF;
+			int time = in.readShort() & 0xFFFF;
+			int date = in.readShort() & 0xFFFF;
+			long crc = in.readInt() & 0xFFFFFFFFL;
+			long compressedSize = in.readInt() & 0xFFFFFFFFL;
+			long size = in.readInt() & 0xFFFFFFFFL;
+			int nameLength = in.readShort() & 0xFFFF;
+			int extraLength = in.readShort() & 0xFFFF;
+			int commentLength = in.readShort() & 0xFFFF;
+			in.skipBytes(8);
+			long localHeaderOffset = in.readInt() & 0xFFFFFFFFL;
+
+			byte[] name = new byte[nameLength];
+			in.readFully(name);
+			byte[] extra = new byte[extraLength];
+			in.readFully(extra);
+			byte[] comment = new byte[commentLength];
+			in.readFully(comment);
+
+			if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+				DataIOStream extraIn = new DataIOStream(extra);
+				while (extraIn.getPosition() + 4 <= extraLength) {
+					int id = extraIn.readShort() & 0xFFFF;
+					int dataSize = extraIn.readShort() & 0xFFFF;
+					int next = extraIn.getPosition() + dataSize;
+					if (id == ZIP64_EXTRA_ID) {
+						//Only the fields that overflowed in the header are present, in this order
+						if (size == ZIP64_MAGIC && extraIn.getPosition() + 8 <= next) {
+							size = extraIn.readLong();
+						}
+						if (compressedSize == ZIP64_MAGIC && extraIn.getPosition() + 8 <= next) {
+							compressedSize = extraIn.readLong();
+						}
+						if (localHeaderOffset == ZIP64_MAGIC && extraIn.getPosition() + 8 <= next) {
+							localHeaderOffset = extraIn.readLong();
+						}
+						break;
+					}
+					extraIn.seek(next);
+				}
+			}
+
+			ZipDirectoryEntry e = new ZipDirectoryEntry(new String(name, StandardCharsets.UTF_8), localHeaderOffset);
+			e.setMethod(method);
+			e.setCrc(crc);
+			e.setSize(size);
+			e.setCompressedSize(compressedSize);
+			long millis = getDosTimeMillis(date, time);
+			if (millis != -1) {
+				e.setTime(millis);
+			}
+			if (extraLength > 0) {
+				try {
+					e.setExtra(extra);
+				} catch (IllegalArgumentException ex) {
+					//Malformed extra data does not prevent reading the entry
+				}
+			}
+			if (commentLength > 0) {
+				e.setComment(new String(comment, (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1));
+			}
+			entries.add(e);
+		}
+	}
+
+	private static long getDosTimeMillis(int date, int time) {
+		try {
+			LocalDateTime ldt = LocalDateTime.of(
+				((date >> 9) & 0x7F) + 1980,
+				(date >> 5) & 0xF,
+				date & 0x1F,
+				(time >> 11) & 0x1F,
+				(time >> 5) & 0x3F,
+				Math.min((time & 0x1F) * 2, 59)
+			);
+			return ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (DateTimeException ex) {
+			return -1;
+		}
+	}
+
+	private byte[] readAt(long position, int length) throws IOException {
+		checkPosition(position + length);
+		byte[] data = new byte[length];
+		synchronized (io) {
+			io.seek((int) position);
+			int off = 0;
+			while (off < length) {
+				int read = io.read(data, off, length - off);
+				if (read <= 0) {
+					throw new EOFException("Unexpected end of zip archive at " + (position + off));
+				}
+				off += read;
+			}
+		}
+		return data;
+	}
+
+	private static void checkPosition(long position) throws IOException {
+		if (position > Integer.MAX_VALUE) {
+			throw new ZipException("Data beyond 2 GB can not be accessed through an IOStream.");
+		}
+	}
+
+	/**
+	 * Gets all entries of the archive in central directory order.
+	 *
+	 * @return
+	 */
+	public List<ZipDirectoryEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Gets the offset of the data of an entry in the archive.
+	 *
+	 * @param e The entry.
+	 * @return
+	 * @throws IOException
+	 */
+	public long getDataOffset(ZipDirectoryEntry e) throws IOException {
+		if (e.dataOffset == -1) {
+			DataIOStream header = new DataIOStream(readAt(e.localHeaderOffset, LOCAL_HEADER_SIZE));
+			if (header.readInt() != SIG_LOCAL_HEADER) {
+				throw new ZipException("Invalid local header of entry " + e.getName());
+			}
+			header.seek(26);
+			int nameLength = header.readShort() & 0xFFFF;
+			int extraLength = header.readShort() & 0xFFFF;
+			e.dataOffset = e.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+		}
+		return e.dataOffset;
+	}
+
+	/**
+	 * Gets a stream of the stored (possibly compressed) data of an entry.
+	 *
+	 * @param e The entry.
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream getRawInputStream(ZipDirectoryEntry e) throws IOException {
+		return new EntrySliceInputStream(getDataOffset(e), e.getCompressedSize());
+	}
+
+	/**
+	 * Gets a stream of the uncompressed data of an entry.
+	 *
+	 * @param e The entry.
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream getInputStream(ZipDirectoryEntry e) throws IOException {
+		switch (e.getMethod()) {
+			case ZipEntry.STORED:
+				return getRawInputStream(e);
+			case ZipEntry.DEFLATED:
+				return new EntryInflaterInputStream(getRawInputStream(e), e.getSize());
+			default:
+				throw new ZipException("Unsupported compression method " + e.getMethod() + " of entry " + e.getName());
+		}
+	}
+
+	/**
+	 * Closes the archive stream.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (io) {
+			io.close();
+		}
+	}
+
+	private class EntrySliceInputStream extends InputStream {
+
+		private long position;
+		private final long end;
+
+		public EntrySliceInputStream(long start, long length) {
+			position = start;
+			end = start + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			len = (int) Math.min(len, end - position);
+			checkPosition(position + len);
+			int read;
+			synchronized (io) {
+				io.seek((int) position);
+				read = io.read(b, off, len);
+			}
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			n = Math.max(0, Math.min(n, end - position));
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+	}
+
+	private static class EntryInflaterInputStream extends InflaterInputStream {
+
+		private final long size;
+		private boolean eof = false;
+		private boolean closed = false;
+
+		public EntryInflaterInputStream(InputStream in, long size) {
+			super(in, new Inflater(true), 8192);
+			this.size = size;
+		}
+
+		@Override
+		protected void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of zip entry data.");
+			}
+			len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				//Raw inflation may need one dummy byte past the end of the data
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (closed) {
+				return 0;
+			}
+			return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - inf.getBytesWritten()));
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				inf.end();
+				super.close();
+			}
+		}
+	}
+}
@@ -6,7 +6,8 @@ import ctrmap.stdlib.io.base.iface.IOStream;
 import ctrmap.stdlib.io.base.iface.ReadableStream;
 import ctrmap.stdlib.io.base.iface.WriteableStream;
 import ctrmap.stdlib.io.base.impl.InputStreamReadable;
-import ctrmap.stdlib.io.base.impl.ext.data.DataIOStream;
+import ctrmap.stdlib.io.base.impl.access.MemoryStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -58,7 +59,30 @@ public class ZipEntryFile extends FSFile {
 
 	@Override
 	public int length() {
-		return exists() ? (int)e.getSize() : 0;
+		return clampSize(getSize());
+	}
+
+	/**
+	 * Gets the uncompressed size of the entry. Unlike length(), this is exact
+	 * for Zip64 entries above 2 GB.
+	 *
+	 * @return The size, or 0 if the entry does not exist.
+	 */
+	public long getSize() {
+		return exists() ? Math.max(0, e.getSize()) : 0;
+	}
+
+	/**
+	 * Gets the compressed size of the entry.
+	 *
+	 * @return The size, or 0 if the entry does not exist.
+	 */
+	public long getCompressedSize() {
+		return exists() ? Math.max(0, e.getCompressedSize()) : 0;
+	}
+
+	static int clampSize(long size) {
+		return (int) Math.min(size, Integer.MAX_VALUE);
 	}
 
 	@Override
@@ -94,7 +118,7 @@ public class ZipEntryFile extends FSFile {
 		if (e == null){
 			return null;
 		}
-		return new DataIOStream(getBytes());
+		return new ZipEntryIO(arc, e);
 	}
 
 	@Override
@@ -113,7 +137,7 @@ public class ZipEntryFile extends FSFile {
 		
 		public ZipReadableFixup(InputStream in, ZipEntry e) {
 			super(in);
-			size = (int)e.getSize();
+			size = clampSize(e.getSize());
 		}
 		
 		@Override
@@ -121,5 +145,166 @@ public class ZipEntryFile extends FSFile {
 			return size;
 		}
 		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			//Inflater streams return partial reads, callers reading the whole entry expect it at once
+			int total = 0;
+			while (total < len) {
+				int r = super.read(b, off + total, len - total);
+				if (r == -1) {
+					return total == 0 ? -1 : total;
+				}
+				total += r;
+			}
+			return total;
+		}
+		
+	}
+	
+	/**
+	 * An IOStream over a zip entry. The entry is decompressed as it is read
+	 * instead of up front, STORED entries are read directly from the archive.
+	 * Seeking backwards restarts reading the entry.
+	 * 
+	 * Like a stream over the entry's bytes, the stream can be written to, but
+	 * the changes are not saved to the archive. On the first write, the entry
+	 * is read into memory and the stream continues on the copy.
+	 */
+	public static class ZipEntryIO implements IOStream {
+		
+		private final ZipArchive arc;
+		private final ZipEntry e;
+		private final int size;
+		
+		private InputStream in;
+		private int position = 0;
+		
+		private MemoryStream memory;
+		
+		public ZipEntryIO(ZipArchive arc, ZipEntry e) {
+			this.arc = arc;
+			this.e = e;
+			size = clampSize(e.getSize());
+		}
+		
+		private InputStream getStream() throws IOException {
+			if (in == null) {
+				in = arc.getEntryInputStream(e);
+				if (in == null) {
+					throw new IOException("Could not open zip entry " + e.getName());
+				}
+				position = 0;
+			}
+			return in;
+		}
+
+		private MemoryStream getMemoryStream() throws IOException {
+			if (memory == null) {
+				int pos = position;
+				close();
+				InputStream stm = getStream();
+				byte[] data = FSUtil.readStreamToBytes(stm);
+				close();
+				if (data == null) {
+					throw new IOException("Could not read zip entry " + e.getName());
+				}
+				memory = new MemoryStream(data);
+				memory.seek(pos);
+			}
+			return memory;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (memory != null) {
+				return memory.read();
+			}
+			int r = getStream().read();
+			if (r != -1) {
+				position++;
+			}
+			return r;
+		}
+
+		@Override
+		public int skipBytes(int amount) throws IOException {
+			if (memory != null) {
+				return memory.skipBytes(amount);
+			}
+			InputStream stm = getStream();
+			int remaining = amount;
+			while (remaining > 0) {
+				long skipped = stm.skip(remaining);
+				if (skipped <= 0) {
+					if (stm.read() == -1) {
+						break;
+					}
+					skipped = 1;
+				}
+				remaining -= skipped;
+			}
+			position += amount - remaining;
+			return amount - remaining;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (memory != null) {
+				return memory.read(b, off, len);
+			}
+			InputStream stm = getStream();
+			int total = 0;
+			while (total < len) {
+				int r = stm.read(b, off + total, len - total);
+				if (r == -1) {
+					break;
+				}
+				total += r;
+			}
+			position += total;
+			return total == 0 && len > 0 ? -1 : total;
+		}
+
+		@Override
+		public void seek(int position) throws IOException {
+			if (memory != null) {
+				memory.seek(position);
+				return;
+			}
+			if (position < this.position || in == null) {
+				close();
+				getStream();
+			}
+			skipBytes(position - this.position);
+		}
+
+		@Override
+		public int getPosition() throws IOException {
+			return memory != null ? memory.getPosition() : position;
+		}
+
+		@Override
+		public int getLength() {
+			return memory != null ? memory.getLength() : size;
+		}
+
+		@Override
+		public void write(int i) throws IOException {
+			getMemoryStream().write(i);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			getMemoryStream().write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+				in = null;
+			}
+			position = 0;
+		}
 	}
-}
+}
\ No newline at end of file
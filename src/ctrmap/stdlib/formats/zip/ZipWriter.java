@@ -0,0 +1,576 @@
+package ctrmap.stdlib.formats.zip;
+
+import ctrmap.stdlib.fs.FSFile;
+import ctrmap.stdlib.thread.ThreadingUtils;
+import ctrmap.stdlib.util.ProgressMonitor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Builds zip archives from FSFiles.
+ *
+ * Entries are deflated concurrently, each into its own buffer, which is kept
+ * in memory for small entries and spilled to a temporary file for large ones.
+ * The archive itself is written sequentially in the order the entries were
+ * added. Only a limited number of entries is compressed ahead of the writer,
+ * so that the memory use does not grow with the archive size.
+ *
+ * Zip64 records are written when the archive exceeds the limits of the
+ * original format.
+ */
+public class ZipWriter {
+
+	/**
+	 * Default number of compression threads, one per available core.
+	 */
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	private static final int SPILL_THRESHOLD = 8 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final int SIG_LOCAL_HEADER = 0x04034B50;
+	private static final int SIG_CENTRAL_HEADER = 0x02014B50;
+	private static final int SIG_END_OF_CENTRAL_DIR = 0x06054B50;
+	private static final int SIG_ZIP64_END_OF_CENTRAL_DIR = 0x06064B50;
+	private static final int SIG_ZIP64_END_OF_CENTRAL_DIR_LOCATOR = 0x07064B50;
+
+	private static final int VERSION_NEEDED = 20;
+	private static final int VERSION_NEEDED_ZIP64 = 45;
+	private static final int FLAG_UTF8 = 0x800;
+
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	private final int parallelism;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Creates a zip writer using the default parallelism.
+	 */
+	public ZipWriter() {
+		this(DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * Creates a zip writer.
+	 *
+	 * @param parallelism Maximum number of entries compressed at once.
+	 */
+	public ZipWriter(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the Deflater compression level of the entries.
+	 *
+	 * @param level Compression level from 0 to 9, or
+	 * Deflater.DEFAULT_COMPRESSION.
+	 */
+	public void setCompressionLevel(int level) {
+		compressionLevel = level;
+	}
+
+	/**
+	 * Gets the number of added entries.
+	 *
+	 * @return
+	 */
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Adds a compressed file entry.
+	 *
+	 * @param path Path of the entry in the archive.
+	 * @param source The file to read the data from when the archive is written.
+	 */
+	public void addFile(String path, FSFile source) {
+		addFile(path, source, true);
+	}
+
+	/**
+	 * Adds a file entry.
+	 *
+	 * @param path Path of the entry in the archive.
+	 * @param source The file to read the data from when the archive is written.
+	 * @param compress False to store the data uncompressed. Entries that do not
+	 * get smaller by compressing are always stored uncompressed.
+	 */
+	public void addFile(String path, FSFile source, boolean compress) {
+		entries.add(new Entry(normalizePath(path), source, compress));
+	}
+
+	/**
+	 * Adds a directory entry.
+	 *
+	 * @param path Path of the directory in the archive.
+	 */
+	public void addDirectory(String path) {
+		entries.add(new Entry(normalizePath(path) + "/", null, false));
+	}
+
+	/**
+	 * Adds a directory and all of its contents.
+	 *
+	 * @param path Path of the directory in the archive, or an empty string to
+	 * add the contents at the archive root.
+	 * @param dir The directory to add.
+	 */
+	public void addTree(String path, FSFile dir) {
+		path = normalizePath(path);
+		if (!path.isEmpty()) {
+			addDirectory(path);
+		}
+		for (FSFile child : dir.listFiles()) {
+			String childPath = path.isEmpty() ? child.getName() : path + "/" + child.getName();
+			if (child.isDirectory()) {
+				addTree(childPath, child);
+			} else {
+				addFile(childPath, child);
+			}
+		}
+	}
+
+	private static String normalizePath(String path) {
+		path = path.replace('\\', '/');
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	/**
+	 * Writes the archive.
+	 *
+	 * @param target The file to write the archive to.
+	 * @param monitor An optional progress monitor.
+	 * @return True if the archive was written successfully.
+	 */
+	public boolean write(FSFile target, ProgressMonitor monitor) {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<EntryData>> pending = new ArrayList<>();
+		int window = parallelism * 2;
+		int submitted = 0;
+		boolean success = false;
+
+		try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(target.getNativeOutputStream(), BUFFER_SIZE))) {
+			for (; submitted < Math.min(window, entries.size()); submitted++) {
+				pending.add(submit(executor, entries.get(submitted)));
+			}
+
+			List<EntryData> written = new ArrayList<>();
+			for (int i = 0; i < entries.size(); i++) {
+				EntryData data = pending.get(i).get();
+				pending.set(i, null);
+				if (submitted < entries.size()) {
+					pending.add(submit(executor, entries.get(submitted++)));
+				}
+				if (monitor != null) {
+					monitor.setProgressSubTitle("Writing " + data.entry.path);
+					monitor.setProgressPercentage((int) (i / (float) entries.size() * 100));
+				}
+				writeEntry(out, data);
+				written.add(data);
+			}
+
+			long cdOffset = out.getCount();
+			for (EntryData data : written) {
+				writeCentralHeader(out, data);
+			}
+			long cdSize = out.getCount() - cdOffset;
+			boolean zip64 = written.size() >= ZIP64_MAGIC_COUNT || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC;
+			if (zip64) {
+				long zip64EocdOffset = out.getCount();
+				ByteBuffer zip64Eocd = createHeader(56);
+				zip64Eocd.putInt(SIG_ZIP64_END_OF_CENTRAL_DIR);
+				zip64Eocd.putLong(44);
+				zip64Eocd.putShort((short) VERSION_NEEDED_ZIP64);
+				zip64Eocd.putShort((short) VERSION_NEEDED_ZIP64);
+				zip64Eocd.putInt(0);
+				zip64Eocd.putInt(0);
+				zip64Eocd.putLong(written.size());
+				zip64Eocd.putLong(written.size());
+				zip64Eocd.putLong(cdSize);
+				zip64Eocd.putLong(cdOffset);
+				out.write(zip64Eocd.array());
+
+				ByteBuffer locator = createHeader(20);
+				locator.putInt(SIG_ZIP64_END_OF_CENTRAL_DIR_LOCATOR);
+				locator.putInt(0);
+				locator.putLong(zip64EocdOffset);
+				locator.putInt(1);
+				out.write(locator.array());
+			}
+			ByteBuffer eocd = createHeader(22);
+			eocd.putInt(SIG_END_OF_CENTRAL_DIR);
+			eocd.putShort((short) 0);
+			eocd.putShort((short) 0);
+			eocd.putShort((short) Math.min(written.size(), ZIP64_MAGIC_COUNT));
+			eocd.putShort((short) Math.min(written.size(), ZIP64_MAGIC_COUNT));
+			eocd.putInt((int) Math.min(cdSize, ZIP64_MAGIC));
+			eocd.putInt((int) Math.min(cdOffset, ZIP64_MAGIC));
+			eocd.putShort((short) 0);
+			out.write(eocd.array());
+			success = true;
+		} catch (IOException | ExecutionException | InterruptedException ex) {
+			Logger.getLogger(ZipWriter.class.getName()).log(Level.SEVERE, null, ex);
+		} finally {
+			for (Future<EntryData> f : pending) {
+				if (f != null) {
+					f.cancel(false);
+				}
+			}
+			ThreadingUtils.shutdownWaitService(executor);
+			for (Future<EntryData> f : pending) {
+				if (f != null && f.isDone() && !f.isCancelled()) {
+					try {
+						f.get().discard();
+					} catch (InterruptedException | ExecutionException ex) {
+						//Failed entries have nothing to discard
+					}
+				}
+			}
+		}
+		return success;
+	}
+
+	private Future<EntryData> submit(ExecutorService executor, Entry entry) {
+		return executor.submit(() -> compress(entry));
+	}
+
+	private EntryData compress(Entry entry) throws IOException {
+		EntryData data = new EntryData(entry);
+		if (entry.source == null) {
+			return data;
+		}
+		CRC32 crc = new CRC32();
+		if (entry.compress) {
+			Deflater deflater = new Deflater(compressionLevel, true);
+			data.buffer = new SpillBuffer();
+			try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(data.buffer, deflater, BUFFER_SIZE)) {
+				data.size = readSource(entry, (buf, len) -> {
+					crc.update(buf, 0, len);
+					deflaterOut.write(buf, 0, len);
+				});
+			} finally {
+				deflater.end();
+			}
+			if (data.buffer.size() < data.size) {
+				data.method = METHOD_DEFLATED;
+				data.compressedSize = data.buffer.size();
+				data.crc = crc.getValue();
+				return data;
+			}
+			//Not worth compressing, the data is copied from the source when written
+			data.buffer.discard();
+			data.buffer = null;
+		} else {
+			data.size = readSource(entry, (buf, len) -> crc.update(buf, 0, len));
+		}
+		data.method = METHOD_STORED;
+		data.compressedSize = data.size;
+		data.crc = crc.getValue();
+		return data;
+	}
+
+	private static interface ChunkHandler {
+
+		public void handle(byte[] buf, int len) throws IOException;
+	}
+
+	private static long readSource(Entry entry, ChunkHandler handler) throws IOException {
+		//Reads are bounded by the length, as not all FSFile streams allow reading past the end
+		long length = entry.source.length();
+		long remaining = length;
+		byte[] buf = new byte[BUFFER_SIZE];
+		try (InputStream in = entry.source.getNativeInputStream()) {
+			while (remaining > 0) {
+				int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+				if (read == -1) {
+					throw new IOException("Unexpected end of the source of entry " + entry.path);
+				}
+				handler.handle(buf, read);
+				remaining -= read;
+			}
+		}
+		return length;
+	}
+
+	private void writeEntry(CountingOutputStream out, EntryData data) throws IOException {
+		data.localHeaderOffset = out.getCount();
+		//The sizes are known before writing, so only entries that need it get the Zip64 extra field
+		boolean zip64 = data.size >= ZIP64_MAGIC || data.compressedSize >= ZIP64_MAGIC;
+		byte[] name = data.entry.path.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = createHeader(30);
+		header.putInt(SIG_LOCAL_HEADER);
+		header.putShort((short) (zip64 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED));
+		header.putShort((short) FLAG_UTF8);
+		header.putShort((short) data.method);
+		header.putShort((short) data.dosTime);
+		header.putShort((short) data.dosDate);
+		header.putInt((int) data.crc);
+		header.putInt((int) (zip64 ? ZIP64_MAGIC : data.compressedSize));
+		header.putInt((int) (zip64 ? ZIP64_MAGIC : data.size));
+		header.putShort((short) name.length);
+		header.putShort((short) (zip64 ? 20 : 0));
+		out.write(header.array());
+		out.write(name);
+		if (zip64) {
+			ByteBuffer extra = createHeader(20);
+			extra.putShort((short) ZIP64_EXTRA_ID);
+			extra.putShort((short) 16);
+			extra.putLong(data.size);
+			extra.putLong(data.compressedSize);
+			out.write(extra.array());
+		}
+
+		if (data.buffer != null) {
+			data.buffer.writeTo(out);
+			data.buffer = null;
+		} else if (data.entry.source != null) {
+			long copied = readSource(data.entry, (buf, len) -> out.write(buf, 0, len));
+			if (copied != data.size) {
+				throw new IOException("Source of entry " + data.entry.path + " changed while writing the archive.");
+			}
+		}
+	}
+
+	private void writeCentralHeader(OutputStream out, EntryData data) throws IOException {
+		boolean zip64Size = data.size >= ZIP64_MAGIC;
+		boolean zip64CompressedSize = data.compressedSize >= ZIP64_MAGIC;
+		boolean zip64Offset = data.localHeaderOffset >= ZIP64_MAGIC;
+		int extraSize = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+		boolean zip64 = extraSize != 0;
+
+		byte[] name = data.entry.path.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = createHeader(46);
+		header.putInt(SIG_CENTRAL_HEADER);
+		header.putShort((short) (zip64 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED));
+		header.putShort((short) (zip64 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED));
+		header.putShort((short) FLAG_UTF8);
+		header.putShort((short) data.method);
+		header.putShort((short) data.dosTime);
+		header.putShort((short) data.dosDate);
+		header.putInt((int) data.crc);
+		header.putInt((int) (zip64CompressedSize ? ZIP64_MAGIC : data.compressedSize));
+		header.putInt((int) (zip64Size ? ZIP64_MAGIC : data.size));
+		header.putShort((short) name.length);
+		header.putShort((short) (zip64 ? extraSize + 4 : 0));
+		header.putShort((short) 0);
+		header.putShort((short) 0);
+		header.putShort((short) 0);
+		header.putInt(data.entry.source == null ? 0x10 : 0);
+		header.putInt((int) (zip64Offset ? ZIP64_MAGIC : data.localHeaderOffset));
+		out.write(header.array());
+		out.write(name);
+		if (zip64) {
+			ByteBuffer extra = createHeader(extraSize + 4);
+			extra.putShort((short) ZIP64_EXTRA_ID);
+			extra.putShort((short) extraSize);
+			if (zip64Size) {
+				extra.putLong(data.size);
+			}
+			if (zip64CompressedSize) {
+				extra.putLong(data.compressedSize);
+			}
+			if (zip64Offset) {
+				extra.putLong(data.localHeaderOffset);
+			}
+			out.write(extra.array());
+		}
+	}
+
+	private static ByteBuffer createHeader(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static class Entry {
+
+		public final String path;
+		public final FSFile source;
+		public final boolean compress;
+
+		public Entry(String path, FSFile source, boolean compress) {
+			this.path = path;
+			this.source = source;
+			this.compress = compress;
+		}
+	}
+
+	private static class EntryData {
+
+		public final Entry entry;
+
+		public int method = METHOD_STORED;
+		public long crc;
+		public long size;
+		public long compressedSize;
+		public int dosTime;
+		public int dosDate;
+		public long localHeaderOffset;
+
+		public SpillBuffer buffer;
+
+		public EntryData(Entry entry) {
+			this.entry = entry;
+			long time = entry.source == null ? 0 : entry.source.lastModified();
+			LocalDateTime ldt = LocalDateTime.ofInstant(Instant.ofEpochMilli(time == 0 ? System.currentTimeMillis() : time), ZoneId.systemDefault());
+			if (ldt.getYear() < 1980) {
+				ldt = LocalDateTime.of(1980, 1, 1, 0, 0);
+			}
+			dosTime = (ldt.getHour() << 11) | (ldt.getMinute() << 5) | (ldt.getSecond() >> 1);
+			dosDate = ((ldt.getYear() - 1980) << 9) | (ldt.getMonthValue() << 5) | ldt.getDayOfMonth();
+		}
+
+		public void discard() {
+			if (buffer != null) {
+				buffer.discard();
+				buffer = null;
+			}
+		}
+	}
+
+	/**
+	 * Output buffer of a compressed entry, moved to a temporary file once it
+	 * exceeds the spill threshold.
+	 */
+	private static class SpillBuffer extends OutputStream {
+
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private File spillFile;
+		private OutputStream spillOut;
+		private long size;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (spillFile == null && memory.size() + len > SPILL_THRESHOLD) {
+				spillFile = File.createTempFile("zipwriter", ".tmp");
+				spillFile.deleteOnExit();
+				spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), BUFFER_SIZE);
+				memory.writeTo(spillOut);
+				memory = null;
+			}
+			if (spillFile != null) {
+				spillOut.write(b, off, len);
+			} else {
+				memory.write(b, off, len);
+			}
+			size += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (spillOut != null) {
+				spillOut.close();
+			}
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			if (spillFile == null) {
+				memory.writeTo(out);
+			} else {
+				spillOut.close();
+				try (InputStream in = new BufferedInputStream(new FileInputStream(spillFile), BUFFER_SIZE)) {
+					byte[] buf = new byte[BUFFER_SIZE];
+					int read;
+					while ((read = in.read(buf)) != -1) {
+						out.write(buf, 0, read);
+					}
+				}
+			}
+			discard();
+		}
+
+		public void discard() {
+			memory = null;
+			if (spillFile != null) {
+				try {
+					spillOut.close();
+				} catch (IOException ex) {
+					Logger.getLogger(ZipWriter.class.getName()).log(Level.SEVERE, null, ex);
+				}
+				spillFile.delete();
+				spillFile = null;
+			}
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private long count = 0;
+
+		public CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -286,6 +286,16 @@ public abstract class FSFile implements Comparable<FSFile> {
 		return hidden;
 	}
 
+	/**
+	 * Gets the time of the last modification of the file.
+	 *
+	 * @return Modification time in milliseconds since the epoch, or 0 if it is
+	 * not known.
+	 */
+	public long lastModified() {
+		return 0;
+	}
+
 	/**
 	 * Checks if the file is a file - that is, it exists and isn't a directory.
 	 *
@@ -1,23 +1,36 @@
 package ctrmap.stdlib.fs;
 
+import ctrmap.stdlib.fs.accessors.BlobStoreFile;
 import ctrmap.stdlib.fs.accessors.DiskFile;
+import ctrmap.stdlib.fs.accessors.DiskFileStatCache;
 import ctrmap.stdlib.fs.accessors.MemoryFile;
 import ctrmap.stdlib.io.base.iface.ReadableStream;
 import ctrmap.stdlib.io.base.iface.WriteableStream;
 import ctrmap.stdlib.io.base.impl.access.MemoryStream;
 import ctrmap.stdlib.io.base.impl.ext.data.DataInStream;
 import ctrmap.stdlib.io.util.StringIO;
+import ctrmap.stdlib.util.ProgressMonitor;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -89,6 +102,431 @@ public class FSUtil {
 		}
 	}
 
+	/**
+	 * Default number of worker threads for parallel tree operations. File
+	 * system calls are mostly latency-bound, so this exceeds the core count on
+	 * smaller machines.
+	 */
+	public static final int DEFAULT_TREE_OP_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Coarsest modification time resolution of the supported file systems,
+	 * which is 2 seconds on FAT.
+	 */
+	public static final long LAST_MODIFIED_GRANULARITY_MILLIS = 2000;
+
+	private static final int TREE_OP_FILE_BATCH_SIZE = 32;
+
+	/**
+	 * Checks if a modification time is older than a point in time by more
+	 * than the modification time resolution. If so, a file that had this
+	 * modification time at that point in time can not have been changed since
+	 * without its modification time changing as well.
+	 *
+	 * @param lastModified Modification time of a file, 0 if unknown.
+	 * @param time The point in time the file was seen with that modification
+	 * time.
+	 * @return
+	 */
+	public static boolean isLastModifiedSettled(long lastModified, long time) {
+		return lastModified != 0 && time - lastModified > LAST_MODIFIED_GRANULARITY_MILLIS;
+	}
+
+	/**
+	 * Copies a FSFile directory and its contents from one location to another,
+	 * processing subdirectories and files concurrently.
+	 *
+	 * @param source The directory to copy from.
+	 * @param target The directory to copy to.
+	 * @param parallelism Maximum number of worker threads.
+	 * @param monitor An optional progress monitor.
+	 * @return True if the whole tree has been copied, false if the source is
+	 * not a directory, the target is a file, or any file failed to copy.
+	 */
+	public static boolean copyDirectoryParallel(FSFile source, FSFile target, int parallelism, ProgressMonitor monitor) {
+		if (source.isDirectory() && (!target.exists() || target.isDirectory())) {
+			target.mkdirs();
+			if (!target.isDirectory()) {
+				return false;
+			}
+			TreeOpProgress progress = new TreeOpProgress(monitor, "Copying " + source.getName());
+			runTreeOp(progress, parallelism, (p) -> new CopyTreeTask(source, target, p));
+			return !progress.hasFailed();
+		}
+		return false;
+	}
+
+	/**
+	 * Copies a FSFile directory and its contents using the default parallelism.
+	 *
+	 * @param source The directory to copy from.
+	 * @param target The directory to copy to.
+	 * @param monitor An optional progress monitor.
+	 * @return True if the whole tree has been copied.
+	 */
+	public static boolean copyDirectoryParallel(FSFile source, FSFile target, ProgressMonitor monitor) {
+		return copyDirectoryParallel(source, target, DEFAULT_TREE_OP_PARALLELISM, monitor);
+	}
+
+	/**
+	 * Moves a FSFile directory and its contents from one location to another.
+	 * Directories on the same disk are renamed directly, otherwise the tree is
+	 * copied concurrently and the source is deleted once all of it has been
+	 * copied. If the source is a file, it is moved using move.
+	 *
+	 * @param source The directory to move.
+	 * @param target The directory to move to.
+	 * @param parallelism Maximum number of worker threads.
+	 * @param monitor An optional progress monitor.
+	 */
+	public static void moveDirectoryParallel(FSFile source, FSFile target, int parallelism, ProgressMonitor monitor) {
+		if (!source.exists()) {
+			return;
+		}
+		if (!source.isDirectory()) {
+			move(source, target);
+			return;
+		}
+		if (source instanceof DiskFile && target instanceof DiskFile && !target.exists()) {
+			try {
+				target.getParent().mkdirs();
+				Files.move(((DiskFile) source).getFile().toPath(), ((DiskFile) target).getFile().toPath());
+				DiskFileStatCache.invalidateCurrent(((DiskFile) source).getFile());
+				DiskFileStatCache.invalidateCurrent(((DiskFile) target).getFile());
+				return;
+			} catch (IOException ex) {
+				//Different file stores, fall back to copying
+			}
+		}
+		if (copyDirectoryParallel(source, target, parallelism, monitor)) {
+			deleteParallel(source, parallelism, monitor);
+		} else {
+			System.out.println("Could not copy all files of " + source + " to " + target + ", keeping the source.");
+		}
+	}
+
+	/**
+	 * Deletes a FSFile directory and its contents, processing subdirectories and
+	 * files concurrently.
+	 *
+	 * @param dir The directory to delete.
+	 * @param parallelism Maximum number of worker threads.
+	 * @param monitor An optional progress monitor.
+	 */
+	public static void deleteParallel(FSFile dir, int parallelism, ProgressMonitor monitor) {
+		if (!dir.isDirectory()) {
+			dir.delete();
+			return;
+		}
+		runTreeOp(new TreeOpProgress(monitor, "Deleting " + dir.getName()), parallelism, (progress) -> new DeleteTreeTask(dir, progress));
+	}
+
+	/**
+	 * Deletes a FSFile directory and its contents using the default
+	 * parallelism.
+	 *
+	 * @param dir The directory to delete.
+	 * @param monitor An optional progress monitor.
+	 */
+	public static void deleteParallel(FSFile dir, ProgressMonitor monitor) {
+		deleteParallel(dir, DEFAULT_TREE_OP_PARALLELISM, monitor);
+	}
+
+	private static interface TreeOpFactory {
+
+		public RecursiveAction create(TreeOpProgress progress);
+	}
+
+	private static void runTreeOp(TreeOpProgress progress, int parallelism, TreeOpFactory factory) {
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+		try {
+			pool.invoke(factory.create(progress));
+		} finally {
+			pool.shutdown();
+		}
+		progress.finish();
+	}
+
+	/**
+	 * Thread-safe progress reporting of a parallel tree operation. The
+	 * percentage is based on the number of completed top-level entries, since
+	 * the size of the whole tree is not known ahead of time.
+	 */
+	private static class TreeOpProgress {
+
+		private final ProgressMonitor monitor;
+		private final DiskFileStatCache statCache = DiskFileStatCache.currentScoped();
+
+		private final AtomicInteger processedFiles = new AtomicInteger();
+		private volatile boolean failed = false;
+		private volatile int topLevelCount = 0;
+		private final AtomicInteger topLevelDone = new AtomicInteger();
+
+		public TreeOpProgress(ProgressMonitor monitor, String title) {
+			this.monitor = monitor;
+			if (monitor != null) {
+				synchronized (monitor) {
+					monitor.setProgressTitle(title);
+					monitor.setProgressPercentage(0);
+				}
+			}
+		}
+
+		/**
+		 * Enters the stat cache of the thread that started the operation on a
+		 * worker thread, so that the workers share it and keep it up to date.
+		 *
+		 * @return The scope of the cache, or null if the operation has none.
+		 */
+		public DiskFileStatCache.Scope enterStatCache() {
+			return statCache == null ? null : statCache.enter();
+		}
+
+		/**
+		 * Leaves a stat cache scope entered by enterStatCache.
+		 *
+		 * @param scope The scope, may be null.
+		 */
+		public void exitStatCache(DiskFileStatCache.Scope scope) {
+			if (scope != null) {
+				scope.close();
+			}
+		}
+
+		public void setTopLevelCount(int count) {
+			topLevelCount = count;
+		}
+
+		public void fileDone(FSFile f) {
+			int count = processedFiles.incrementAndGet();
+			if (monitor != null && (count % TREE_OP_FILE_BATCH_SIZE) == 0) {
+				synchronized (monitor) {
+					monitor.setProgressSubTitle(count + " files processed (" + f.getName() + ")");
+				}
+			}
+		}
+
+		public void fileFailed(FSFile f) {
+			failed = true;
+			System.out.println("Failed to process " + f);
+		}
+
+		public boolean hasFailed() {
+			return failed;
+		}
+
+		public void topLevelDone() {
+			if (monitor != null && topLevelCount > 0) {
+				synchronized (monitor) {
+					monitor.setProgressPercentage((int) (topLevelDone.incrementAndGet() / (float) topLevelCount * 100));
+				}
+			} else {
+				topLevelDone.incrementAndGet();
+			}
+		}
+
+		public void finish() {
+			if (monitor != null) {
+				synchronized (monitor) {
+					monitor.setProgressSubTitle(processedFiles.get() + " files processed");
+					monitor.setProgressPercentage(100);
+				}
+			}
+		}
+	}
+
+	private static class CopyTreeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FSFile source;
+		private final FSFile target;
+		private final TreeOpProgress progress;
+		private final boolean topLevel;
+		private final boolean topLevelEntry;
+
+		public CopyTreeTask(FSFile source, FSFile target, TreeOpProgress progress) {
+			this(source, target, progress, true, false);
+		}
+
+		private CopyTreeTask(FSFile source, FSFile target, TreeOpProgress progress, boolean topLevel, boolean topLevelEntry) {
+			this.source = source;
+			this.target = target;
+			this.progress = progress;
+			this.topLevel = topLevel;
+			this.topLevelEntry = topLevelEntry;
+		}
+
+		@Override
+		protected void compute() {
+			DiskFileStatCache.Scope scope = progress.enterStatCache();
+			try {
+				List<? extends FSFile> children = source.listFiles();
+				if (topLevel) {
+					progress.setTopLevelCount(children.size());
+				}
+				List<RecursiveAction> tasks = new ArrayList<>();
+				List<FSFile> fileBatch = new ArrayList<>();
+				for (FSFile child : children) {
+					if (child.isDirectory()) {
+						FSFile childTarget = target.getChild(child.getName());
+						childTarget.mkdirs();
+						if (!childTarget.isDirectory()) {
+							progress.fileFailed(child);
+							continue;
+						}
+						tasks.add(new CopyTreeTask(child, childTarget, progress, false, topLevel));
+					} else {
+						fileBatch.add(child);
+						if (fileBatch.size() >= TREE_OP_FILE_BATCH_SIZE) {
+							tasks.add(new CopyFilesTask(fileBatch, target, progress, topLevel));
+							fileBatch = new ArrayList<>();
+						}
+					}
+				}
+				if (!fileBatch.isEmpty()) {
+					tasks.add(new CopyFilesTask(fileBatch, target, progress, topLevel));
+				}
+				invokeAll(tasks);
+				if (topLevelEntry) {
+					progress.topLevelDone();
+				}
+			} finally {
+				progress.exitStatCache(scope);
+			}
+		}
+	}
+
+	private static class CopyFilesTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<FSFile> files;
+		private final FSFile targetDir;
+		private final TreeOpProgress progress;
+		private final boolean topLevel;
+
+		public CopyFilesTask(List<FSFile> files, FSFile targetDir, TreeOpProgress progress, boolean topLevel) {
+			this.files = files;
+			this.targetDir = targetDir;
+			this.progress = progress;
+			this.topLevel = topLevel;
+		}
+
+		@Override
+		protected void compute() {
+			DiskFileStatCache.Scope scope = progress.enterStatCache();
+			try {
+				for (FSFile f : files) {
+					FSFile target = targetDir.getChild(f.getName());
+					try {
+						copy(f, target);
+						//The copy routines only log their errors
+						if (!target.isFile() || target.length() != f.length()) {
+							progress.fileFailed(f);
+						}
+					} catch (RuntimeException ex) {
+						Logger.getLogger(FSUtil.class.getName()).log(Level.SEVERE, null, ex);
+						progress.fileFailed(f);
+					}
+					progress.fileDone(f);
+					if (topLevel) {
+						progress.topLevelDone();
+					}
+				}
+			} finally {
+				progress.exitStatCache(scope);
+			}
+		}
+	}
+
+	private static class DeleteTreeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FSFile dir;
+		private final TreeOpProgress progress;
+		private final boolean topLevel;
+		private final boolean topLevelEntry;
+
+		public DeleteTreeTask(FSFile dir, TreeOpProgress progress) {
+			this(dir, progress, true, false);
+		}
+
+		private DeleteTreeTask(FSFile dir, TreeOpProgress progress, boolean topLevel, boolean topLevelEntry) {
+			this.dir = dir;
+			this.progress = progress;
+			this.topLevel = topLevel;
+			this.topLevelEntry = topLevelEntry;
+		}
+
+		@Override
+		protected void compute() {
+			DiskFileStatCache.Scope scope = progress.enterStatCache();
+			try {
+				List<? extends FSFile> children = dir.listFiles();
+				if (topLevel) {
+					progress.setTopLevelCount(children.size());
+				}
+				List<RecursiveAction> tasks = new ArrayList<>();
+				List<FSFile> fileBatch = new ArrayList<>();
+				for (FSFile child : children) {
+					if (child.isDirectory()) {
+						tasks.add(new DeleteTreeTask(child, progress, false, topLevel));
+					} else {
+						fileBatch.add(child);
+						if (fileBatch.size() >= TREE_OP_FILE_BATCH_SIZE) {
+							tasks.add(new DeleteFilesTask(fileBatch, progress, topLevel));
+							fileBatch = new ArrayList<>();
+						}
+					}
+				}
+				if (!fileBatch.isEmpty()) {
+					tasks.add(new DeleteFilesTask(fileBatch, progress, topLevel));
+				}
+				invokeAll(tasks);
+				//The directory is empty by now
+				dir.delete();
+				if (topLevelEntry) {
+					progress.topLevelDone();
+				}
+			} finally {
+				progress.exitStatCache(scope);
+			}
+		}
+	}
+
+	private static class DeleteFilesTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<FSFile> files;
+		private final TreeOpProgress progress;
+		private final boolean topLevel;
+
+		public DeleteFilesTask(List<FSFile> files, TreeOpProgress progress, boolean topLevel) {
+			this.files = files;
+			this.progress = progress;
+			this.topLevel = topLevel;
+		}
+
+		@Override
+		protected void compute() {
+			DiskFileStatCache.Scope scope = progress.enterStatCache();
+			try {
+				for (FSFile f : files) {
+					f.delete();
+					progress.fileDone(f);
+					if (topLevel) {
+						progress.topLevelDone();
+					}
+				}
+			} finally {
+				progress.exitStatCache(scope);
+			}
+		}
+	}
+
 	/**
 	 * Copies a disk File from one location to another, replacing any existing
 	 * file at the location.
@@ -99,6 +537,7 @@ public class FSUtil {
 	public static void copy(File source, File target) {
 		try {
 			Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			DiskFileStatCache.invalidateCurrent(target);
 		} catch (IOException ex) {
 			Logger.getLogger(FSUtil.class.getName()).log(Level.SEVERE, null, ex);
 		}
@@ -114,23 +553,63 @@ public class FSUtil {
 	public static void move(File source, File target) {
 		try {
 			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			DiskFileStatCache.invalidateCurrent(source);
+			DiskFileStatCache.invalidateCurrent(target);
 		} catch (IOException ex) {
 			Logger.getLogger(FSUtil.class.getName()).log(Level.SEVERE, null, ex);
 		}
 	}
 
+	/**
+	 * Moves a file over another file as a single atomic operation, if the
+	 * underlying file system supports it. Disk files are renamed atomically
+	 * when on the same volume. Other files are moved normally.
+	 *
+	 * @param source The file to move.
+	 * @param target The file to replace.
+	 * @return True if the move succeeded.
+	 */
+	public static boolean moveAtomic(FSFile source, FSFile target) {
+		DiskFile src = getFileOfClass(DiskFile.class, source);
+		DiskFile tgt = getFileOfClass(DiskFile.class, target);
+		if (src != null && tgt != null) {
+			try {
+				try {
+					Files.move(src.getFile().toPath(), tgt.getFile().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException ex) {
+					Files.move(src.getFile().toPath(), tgt.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				return true;
+			} catch (IOException ex) {
+				Logger.getLogger(FSUtil.class.getName()).log(Level.SEVERE, null, ex);
+				return false;
+			} finally {
+				DiskFileStatCache.invalidateCurrent(src.getFile());
+				DiskFileStatCache.invalidateCurrent(tgt.getFile());
+			}
+		}
+		move(source, target);
+		return target.exists();
+	}
+
 	/**
 	 * Copies an FSFile to any writable FSFile. The FSFile can be either a
 	 * directory or a file.
 	 *
 	 * The method will use a faster, native routine if both files are on the
 	 * disk. The method will clone the backing array of the first file into the
-	 * other if they are both MemoryFiles.
+	 * other if they are both MemoryFiles. Files within the same BlobStore are
+	 * copied by reference. Otherwise, the data is streamed using
+	 * copyFileStreamed.
 	 *
 	 * @param source The file or directory to copy from.
 	 * @param target The file or directory to copy to.
 	 */
 	public static void copy(FSFile source, FSFile target) {
+		if (transferBlobStoreFile(source, target, false)) {
+			return;
+		}
+
 		if (source.isDirectory() && (target.isDirectory() || !target.exists())) {
 			copyDirectory(source, target);
 			return;
@@ -150,7 +629,7 @@ public class FSUtil {
 			return;
 		}
 
-		writeBytesToFile(target, readFileToBytes(source));
+		copyFileStreamed(source, target);
 	}
 
 	/**
@@ -159,13 +638,18 @@ public class FSUtil {
 	 *
 	 * The method will use a faster, native routine if both files are on the
 	 * disk. The method will clone the backing array of the first file into the
-	 * other if they are both MemoryFiles. Otherwise, a copy operation is
-	 * performed, followed by the source file being deleted.
+	 * other if they are both MemoryFiles. Files within the same BlobStore are
+	 * moved by reference. Otherwise, a streamed copy operation is performed,
+	 * followed by the source file being deleted.
 	 *
 	 * @param source The file or directory to move.
 	 * @param target The file or directory to move to.
 	 */
 	public static void move(FSFile source, FSFile target) {
+		if (transferBlobStoreFile(source, target, true)) {
+			return;
+		}
+
 		if (source.isDirectory() && target.isDirectory()) {
 			copyDirectory(source, target);
 			source.delete();
@@ -187,10 +671,106 @@ public class FSUtil {
 		}
 
 		//Using setPath could result in undefined behavior if the files are not on the same file system
-		writeBytesToFile(target, readFileToBytes(source));
+		copyFileStreamed(source, target);
 		source.delete();
 	}
 
+	private static final int STREAM_COPY_BUFFER_SIZE = 65536;
+
+	private static final ThreadLocal<byte[]> STREAM_COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[STREAM_COPY_BUFFER_SIZE]);
+
+	/**
+	 * Copies the data of a file into another file without loading it into
+	 * memory as a whole.
+	 *
+	 * If the source is on the disk, its data is transferred through its
+	 * FileChannel. If the target is a disk file, it is written through its
+	 * FileChannel. Otherwise, the data is streamed through a fixed-size buffer
+	 * reused by the calling thread.
+	 *
+	 * @param source The file to copy from.
+	 * @param target The file to copy to.
+	 */
+	public static void copyFileStreamed(FSFile source, FSFile target) {
+		try {
+			DiskFile srcDisk = getFileOfClass(DiskFile.class, source);
+			if (srcDisk != null) {
+				try (FileChannel in = FileChannel.open(srcDisk.getFile().toPath(), StandardOpenOption.READ)) {
+					if (target instanceof DiskFile) {
+						try (FileChannel out = FileChannel.open(((DiskFile) target).getFile().toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+							transferChannel(in, out);
+						}
+						DiskFileStatCache.invalidateCurrent(((DiskFile) target).getFile());
+					} else {
+						try (WritableByteChannel out = Channels.newChannel(target.getNativeOutputStream())) {
+							transferChannel(in, out);
+						}
+					}
+				}
+			} else if (target instanceof DiskFile) {
+				try (ReadableStream in = source.getInputStream()) {
+					try (FileChannel out = FileChannel.open(((DiskFile) target).getFile().toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+						byte[] buf = STREAM_COPY_BUFFER.get();
+						int remaining = in.getLength();
+						while (remaining > 0) {
+							int read = in.read(buf, 0, Math.min(buf.length, remaining));
+							if (read <= 0) {
+								break;
+							}
+							ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+							while (bb.hasRemaining()) {
+								out.write(bb);
+							}
+							remaining -= read;
+						}
+					}
+					DiskFileStatCache.invalidateCurrent(((DiskFile) target).getFile());
+				}
+			} else {
+				try (ReadableStream in = source.getInputStream()) {
+					try (WriteableStream out = target.getOutputStream()) {
+						transferStream(in, out);
+					}
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(FSUtil.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	private static void transferChannel(FileChannel in, WritableByteChannel out) throws IOException {
+		long size = in.size();
+		long pos = 0;
+		while (pos < size) {
+			long transferred = in.transferTo(pos, size - pos, out);
+			if (transferred <= 0) {
+				break;
+			}
+			pos += transferred;
+		}
+	}
+
+	/**
+	 * Transfers all remaining bytes of a ReadableStream into a WriteableStream
+	 * through a fixed-size buffer. Neither of the streams is closed.
+	 *
+	 * @param in The stream to read from.
+	 * @param out The stream to write into.
+	 * @throws IOException
+	 */
+	public static void transferStream(ReadableStream in, WriteableStream out) throws IOException {
+		byte[] buf = STREAM_COPY_BUFFER.get();
+		int remaining = in.getLength() - in.getPosition();
+		while (remaining > 0) {
+			int read = in.read(buf, 0, Math.min(buf.length, remaining));
+			if (read <= 0) {
+				break;
+			}
+			out.write(buf, 0, read);
+			remaining -= read;
+		}
+	}
+
 	private static <T extends FSFile> T getFileOfClass(Class<T> cls, FSFile fsf) {
 		if (cls.isAssignableFrom(fsf.getClass())) {
 			return (T) fsf;
@@ -203,6 +783,83 @@ public class FSUtil {
 		return null;
 	}
 
+	private static BlobStoreFile getBlobStoreTarget(FSFile target) {
+		if (target instanceof BlobStoreFile) {
+			return (BlobStoreFile) target;
+		} else if (target instanceof VFSFile && ((VFSFile) target).getOvFile() instanceof BlobStoreFile) {
+			//Writes to a VFSFile always go to the OvFS
+			return (BlobStoreFile) ((VFSFile) target).getOvFile();
+		}
+		return null;
+	}
+
+	private static boolean transferBlobStoreFile(FSFile source, FSFile target, boolean move) {
+		BlobStoreFile tgt = getBlobStoreTarget(target);
+		if (tgt == null) {
+			return false;
+		}
+		BlobStoreFile src = getFileOfClass(BlobStoreFile.class, source);
+		boolean sameStore = src != null && src.getStore() == tgt.getStore() && src.exists();
+		if (!sameStore && !source.isFile()) {
+			return false;
+		}
+		boolean done;
+		if (target instanceof VFSFile) {
+			VFSFile vfsTarget = (VFSFile) target;
+			VFS vfs = vfsTarget.getVFS();
+			String path = vfsTarget.getPath();
+			//Same bookkeeping as a write through VFSFile.getOutputStream
+			Lock l = vfs.getPathLock(path).writeLock();
+			l.lock();
+			try {
+				boolean isNew = !tgt.exists();
+				vfs.beginOwnWrite(path, true);
+				try {
+					done = transferIntoBlobStore(source, src, tgt, sameStore, move);
+				} finally {
+					vfs.endOwnWrite(path, true, tgt);
+				}
+				if (done) {
+					if (isNew && tgt.isFile()) {
+						vfs.notifyOvFsNewFileInit(path);
+					}
+					if (vfs.isFileChangeBlacklisted(path) && tgt.isFile()) {
+						//Blobs are addressed by their content hash, so the file does not need to be read again
+						String hash = tgt.getStore().getHash(tgt.getStorePath());
+						if (hash != null && hash.equals(vfs.getBaseFileHash(path, vfsTarget.getBaseFile()))) {
+							vfs.notifyOvFsFileUnchanged(path, tgt);
+						} else {
+							vfs.notifyFileChange(path);
+						}
+					} else {
+						vfs.notifyFileChange(path);
+					}
+				}
+			} finally {
+				l.unlock();
+			}
+		} else {
+			done = transferIntoBlobStore(source, src, tgt, sameStore, move);
+		}
+		if (done && move && !sameStore) {
+			source.delete();
+		}
+		return done;
+	}
+
+	private static boolean transferIntoBlobStore(FSFile source, BlobStoreFile src, BlobStoreFile tgt, boolean sameStore, boolean move) {
+		if (sameStore) {
+			if (move) {
+				src.getStore().move(src.getStorePath(), tgt.getStorePath());
+			} else {
+				src.getStore().copy(src.getStorePath(), tgt.getStorePath());
+			}
+			return true;
+		}
+		//Only stores the data if the store does not have it yet
+		return tgt.getStore().putFile(tgt.getStorePath(), source);
+	}
+
 	private static interface FSFileTransferCallback<T extends FSFile> {
 
 		public void transfer(T source, T target);
@@ -219,22 +876,29 @@ public class FSUtil {
 		return false;
 	}
 
+	private static final int FILE_CMP_CHUNK_SIZE = 1 << 20;
+
+	private static final ThreadLocal<byte[][]> FILE_CMP_BUFFERS = ThreadLocal.withInitial(() -> new byte[][]{new byte[FILE_CMP_CHUNK_SIZE], new byte[FILE_CMP_CHUNK_SIZE]});
+
 	/**
-	 * Compares the contents of two FSFiles using the default buffer size of
-	 * 8MB.
+	 * Compares the contents of two FSFiles. Files smaller than 1MB are compared
+	 * in memory, larger files are compared in 1MB chunks.
 	 *
 	 * @param f1 The LHS of the comparison.
 	 * @param f2 The RHS of the comparison.
 	 * @return True if the files are equal, byte-by-byte.
 	 */
 	public static boolean fileCmp(FSFile f1, FSFile f2) {
-		//Load all files below 8 megabytes to memory for faster comparison
-		return fileCmp(f1, f2, 8000000);
+		return fileCmp(f1, f2, FILE_CMP_CHUNK_SIZE);
 	}
 
 	/**
 	 * Compares the contents of two FSFiles.
 	 *
+	 * The lengths of the files are compared first. Files at or above the
+	 * buffer threshold are then read in chunks, which are compared in bulk
+	 * until the first difference is found.
+	 *
 	 * @param f1 The LHS of the comparison.
 	 * @param f2 The RHS of the comparison.
 	 * @param bufferThreshold The file size threshold below which the files
@@ -244,30 +908,31 @@ public class FSUtil {
 	public static boolean fileCmp(FSFile f1, FSFile f2, int bufferThreshold) {
 		if (f1.exists() && f2.exists()) {
 			if (!f1.isDirectory() && !f2.isDirectory()) {
-				if (f1.length() == f2.length()) {
-					if (f1.length() < bufferThreshold) {
+				int length = f1.length();
+				if (length == f2.length()) {
+					MemoryFile mf1 = getFileOfClass(MemoryFile.class, f1);
+					MemoryFile mf2 = getFileOfClass(MemoryFile.class, f2);
+					if ((mf1 != null && mf2 != null) || length < bufferThreshold) {
 						byte[] b1 = readFileToBytes(f1);
 						byte[] b2 = readFileToBytes(f2);
 						return Arrays.equals(b1, b2);
 					} else {
-						try {
-							ReadableStream is1 = f1.getInputStream();
-							ReadableStream is2 = f2.getInputStream();
-							int b0 = 0;
-							int b1 = 0;
-							int size = is1.getLength();
-							boolean b = true;
-							for (int i = 0; i < size; i++) {
-								b0 = is1.read();
-								b1 = is2.read();
-								if (b0 != b1) {
-									b = false;
-									break;
+						try (ChunkReader r1 = ChunkReader.open(f1); ChunkReader r2 = ChunkReader.open(f2)) {
+							byte[][] buffers = FILE_CMP_BUFFERS.get();
+							byte[] buf1 = buffers[0];
+							byte[] buf2 = buffers[1];
+							int remaining = length;
+							while (remaining > 0) {
+								int chunk = Math.min(remaining, FILE_CMP_CHUNK_SIZE);
+								if (r1.readFully(buf1, chunk) != chunk || r2.readFully(buf2, chunk) != chunk) {
+									return false;
 								}
+								if (!ByteBuffer.wrap(buf1, 0, chunk).equals(ByteBuffer.wrap(buf2, 0, chunk))) {
+									return false;
+								}
+								remaining -= chunk;
 							}
-							is1.close();
-							is2.close();
-							return b;
+							return true;
 						} catch (IOException ex) {
 							Logger.getLogger(FSUtil.class.getName()).log(Level.SEVERE, null, ex);
 						}
@@ -278,6 +943,60 @@ public class FSUtil {
 		return false;
 	}
 
+	/**
+	 * Sequential reader of file data in chunks, using a FileChannel for disk
+	 * files and the ReadableStream of any other FSFile.
+	 */
+	private static abstract class ChunkReader implements AutoCloseable {
+
+		public static ChunkReader open(FSFile fsf) throws IOException {
+			DiskFile df = getFileOfClass(DiskFile.class, fsf);
+			if (df != null) {
+				FileChannel channel = FileChannel.open(df.getFile().toPath(), StandardOpenOption.READ);
+				return new ChunkReader() {
+					@Override
+					public int read(byte[] buf, int off, int len) throws IOException {
+						return channel.read(ByteBuffer.wrap(buf, off, len));
+					}
+
+					@Override
+					public void close() throws IOException {
+						channel.close();
+					}
+				};
+			}
+			ReadableStream strm = fsf.getInputStream();
+			return new ChunkReader() {
+				@Override
+				public int read(byte[] buf, int off, int len) throws IOException {
+					return strm.read(buf, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					strm.close();
+				}
+			};
+		}
+
+		public abstract int read(byte[] buf, int off, int len) throws IOException;
+
+		public int readFully(byte[] buf, int len) throws IOException {
+			int done = 0;
+			while (done < len) {
+				int r = read(buf, done, len - done);
+				if (r <= 0) {
+					break;
+				}
+				done += r;
+			}
+			return done;
+		}
+
+		@Override
+		public abstract void close() throws IOException;
+	}
+
 	/**
 	 * Copies a FSFile file from one location to another without optimizations.
 	 *
@@ -298,6 +1017,7 @@ public class FSUtil {
 	public static void writeBytesToFile(File f, byte[] bytes) {
 		try {
 			Files.write(f.toPath(), bytes, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			DiskFileStatCache.invalidateCurrent(f);
 		} catch (IOException ex) {
 			Logger.getLogger(FSUtil.class.getName()).log(Level.SEVERE, null, ex);
 		}
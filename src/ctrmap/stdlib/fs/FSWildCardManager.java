@@ -2,7 +2,11 @@ package ctrmap.stdlib.fs;
 
 import ctrmap.stdlib.fs.accessors.arc.ArcFile;
 import ctrmap.stdlib.fs.accessors.arc.ArcFileAccessor;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -19,6 +23,24 @@ public class FSWildCardManager {
 
 	private final Map<String, FSWildCard> options = new HashMap<>();
 
+	private final OptionTrieNode optionTrie = new OptionTrieNode();
+
+	private static final int PATH_CACHE_CAPACITY = 4096;
+
+	private final Map<String, String> wildCardedPathCache = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > PATH_CACHE_CAPACITY;
+		}
+	});
+
+	private final Map<String, List<String>> refPathTokenCache = Collections.synchronizedMap(new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+			return size() > PATH_CACHE_CAPACITY;
+		}
+	});
+
 	/**
 	 * Creates a FSWildCardManager with a wild card set.
 	 *
@@ -29,6 +51,7 @@ public class FSWildCardManager {
 			this.wildCards.put(wc.getFullDDotId(), wc);
 			for (String opt : wc.options) {
 				options.put(opt, wc);
+				optionTrie.put(opt, wc);
 			}
 		}
 	}
@@ -41,16 +64,57 @@ public class FSWildCardManager {
 	 * wild card tokens.
 	 */
 	public String getWildCardedPath(String originalPath) {
-		for (FSWildCard wc : wildCards.values()) {
-			for (String opt : wc.options) {
-				String ddot = wc.getFullDDotId();
-				if (originalPath.contains(opt) && !originalPath.contains(ddot)) {
-					//This could be considered flawed when the same reference is used multiple times in the same path, however, this should never be the case
-					originalPath = originalPath.replaceAll(opt, ddot);
+		if (originalPath == null || wildCards.isEmpty()) {
+			return originalPath;
+		}
+		String result = wildCardedPathCache.get(originalPath);
+		if (result == null) {
+			result = createWildCardedPath(originalPath);
+			wildCardedPathCache.put(originalPath, result);
+		}
+		return result;
+	}
+
+	private String createWildCardedPath(String originalPath) {
+		StringBuilder sb = null;
+		int len = originalPath.length();
+		int copiedUntil = 0;
+		for (int i = 0; i < len;) {
+			//Longest option starting at this position
+			OptionTrieNode match = null;
+			int matchEnd = i;
+			OptionTrieNode node = optionTrie;
+			for (int j = i; j < len; j++) {
+				node = node.children.get(originalPath.charAt(j));
+				if (node == null) {
+					break;
+				}
+				if (node.wildCard != null) {
+					match = node;
+					matchEnd = j + 1;
+				}
+			}
+			if (match != null) {
+				String ddot = match.wildCard.getFullDDotId();
+				//Paths that already reference the wild card are left as they are
+				if (!originalPath.contains(ddot)) {
+					if (sb == null) {
+						sb = new StringBuilder(len);
+					}
+					sb.append(originalPath, copiedUntil, i);
+					sb.append(ddot);
+					copiedUntil = matchEnd;
+					i = matchEnd;
+					continue;
 				}
 			}
+			i++;
 		}
-		return originalPath;
+		if (sb == null) {
+			return originalPath;
+		}
+		sb.append(originalPath, copiedUntil, len);
+		return sb.toString();
 	}
 
 	/**
@@ -80,7 +144,7 @@ public class FSWildCardManager {
 				if (repl == null) {
 					repl = wc.getFirstOption();
 				}
-				wildCardedPath = wildCardedPath.replaceAll(ddot, repl);
+				wildCardedPath = wildCardedPath.replace(ddot, repl);
 			}
 		}
 
@@ -139,8 +203,9 @@ public class FSWildCardManager {
 		if (refPath == null){
 			return parent;
 		}
-		for (int i = 0; i < refPath.length(); i++) {
-			String thing = getTextUntilSlash(refPath, i);
+		List<String> tokens = getRefPathTokens(refPath);
+		int i = 0;
+		for (String thing : tokens) {
 			i += thing.length();
 			if (thing.startsWith(":") && thing.endsWith(":")) {
 				currentParent = getExistingRefFile(currentParent, thing);
@@ -153,10 +218,26 @@ public class FSWildCardManager {
 					return currentParent.getChild(refPath.substring(i + 1));
 				}
 			}
+			i++;
 		}
 		return currentParent;
 	}
 
+	private List<String> getRefPathTokens(String refPath) {
+		List<String> tokens = refPathTokenCache.get(refPath);
+		if (tokens == null) {
+			tokens = new ArrayList<>();
+			for (int i = 0; i < refPath.length(); i++) {
+				String thing = getTextUntilSlash(refPath, i);
+				i += thing.length();
+				tokens.add(thing);
+			}
+			tokens = Collections.unmodifiableList(tokens);
+			refPathTokenCache.put(refPath, tokens);
+		}
+		return tokens;
+	}
+
 	private static String getTextUntilSlash(String str, int start) {
 		int idx = str.indexOf('/', start);
 		if (idx == -1) {
@@ -164,4 +245,24 @@ public class FSWildCardManager {
 		}
 		return str.substring(start, idx);
 	}
+
+	/**
+	 * A character trie of all wild card options, used for matching the options
+	 * in a path in a single pass.
+	 */
+	private static class OptionTrieNode {
+
+		public final Map<Character, OptionTrieNode> children = new HashMap<>();
+		public FSWildCard wildCard;
+
+		public void put(String option, FSWildCard wc) {
+			OptionTrieNode node = this;
+			for (int i = 0; i < option.length(); i++) {
+				node = node.children.computeIfAbsent(option.charAt(i), (c) -> new OptionTrieNode());
+			}
+			if (node.wildCard == null) {
+				node.wildCard = wc;
+			}
+		}
+	}
 }
@@ -1,25 +1,68 @@
 package ctrmap.stdlib.fs;
 
+import ctrmap.stdlib.crypto.ContentHash;
+import ctrmap.stdlib.fs.accessors.DiskFileStatCache;
 import ctrmap.stdlib.fs.accessors.arc.DotArc;
 import ctrmap.stdlib.fs.accessors.arc.ArcInput;
 import ctrmap.stdlib.fs.accessors.arc.ArcFile;
 import ctrmap.stdlib.fs.accessors.arc.ArcFileAccessor;
+import ctrmap.stdlib.thread.StripedReadWriteLock;
 import ctrmap.stdlib.util.ProgressMonitor;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A layered file system with support for archive mounting.
+ *
+ * The file system consists of a writable OvFS on top, any number of read-only
+ * patch layers below it, and the BaseFS at the bottom. A file is read from the
+ * topmost layer that contains it.
+ *
+ * The VFS may be accessed from multiple threads. OvFS file creation and
+ * blacklist updates are guarded by per-path read/write locks, so that
+ * independent files can be read and written concurrently.
  */
 public class VFS {
 
 	private final FSManager fs;
 
-	private VFSRootFile root;
-	private VFSRootFile overlay;
+	private volatile VFSRootFile root;
+	private volatile VFSRootFile overlay;
 
-	private boolean hasChangeBlacklist = false;
-	private VFSChangeBlacklist blacklist;
+	private volatile boolean hasChangeBlacklist = false;
+	private volatile VFSChangeBlacklist blacklist;
+
+	private volatile VFSApplyManifest applyManifest;
+
+	private volatile VFSIndex index;
+
+	private final StripedReadWriteLock pathLocks = new StripedReadWriteLock(64);
+
+	//Ordered from the bottom to the top
+	private final List<VFSLayerIndex> patchLayers = new CopyOnWriteArrayList<>();
+
+	private final Map<String, BaseFileHash> baseHashCache = new ConcurrentHashMap<>();
+
+	private final List<VFSChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+	private volatile VFSWatcher watcher;
+
+	//Watcher events arriving this long after a write of the VFS are no longer matched against it
+	private static final long OWN_WRITE_EVENT_WINDOW_MILLIS = 10000;
+	//A write still in flight after this long is assumed to have been abandoned without being ended
+	private static final long OWN_WRITE_MAX_IN_FLIGHT_MILLIS = 600000;
+
+	private final Map<String, OwnWrite> ownWrites = new ConcurrentHashMap<>();
+	private volatile long lastOwnWriteSweep = 0;
 
 	/**
 	 * Creates a VFS using the provided FSManager.
@@ -47,14 +90,290 @@ public class VFS {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
+				if (watcher != null) {
+					watcher.close();
+				}
 				if (hasChangeBlacklist) {
 					blacklist.doRemoveFiles();
 					blacklist.terminate();
 				}
+				if (index != null) {
+					index.write();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the lock guarding a VFS path. The write lock is held while the OvFS
+	 * file of the path is created, renamed, deleted or checked for changes.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @return
+	 */
+	public ReadWriteLock getPathLock(String path) {
+		return pathLocks.get(path);
+	}
+
+	StripedReadWriteLock getPathLocks() {
+		return pathLocks;
+	}
+
+	/**
+	 * Starts watching the disk-backed layers of this VFS for changes made by
+	 * external programs. Changed files are removed from the blacklist and
+	 * cached metadata of the files is invalidated.
+	 *
+	 * @return True if the watcher has been started, false if no layer can be
+	 * watched.
+	 */
+	public synchronized boolean startWatcher() {
+		if (watcher != null) {
+			return true;
+		}
+		if (!VFSWatcher.isWatchable(this)) {
+			return false;
+		}
+		try {
+			watcher = new VFSWatcher(this);
+			watcher.start();
+			return true;
+		} catch (IOException ex) {
+			Logger.getLogger(VFS.class.getName()).log(Level.SEVERE, null, ex);
+			watcher = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the external change watcher, if running.
+	 */
+	public synchronized void stopWatcher() {
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Checks if external changes to the BaseFS and the OvFS are reported to
+	 * this VFS, so that its cached metadata does not have to be checked
+	 * against the layers on every query.
+	 *
+	 * @return
+	 */
+	boolean isWatchingExternalChanges() {
+		VFSWatcher w = watcher;
+		return w != null && w.isWatchingAllLayers();
+	}
+
+	/**
+	 * Registers a listener to be notified of file changes.
+	 *
+	 * @param l The listener.
+	 */
+	public void addChangeListener(VFSChangeListener l) {
+		changeListeners.add(l);
+	}
+
+	/**
+	 * Unregisters a file change listener.
+	 *
+	 * @param l The listener.
+	 */
+	public void removeChangeListener(VFSChangeListener l) {
+		changeListeners.remove(l);
+	}
+
+	void fireFileChanged(String path, VFSChangeListener.ChangeType type) {
+		for (VFSChangeListener l : changeListeners) {
+			l.fileChanged(path, type);
+		}
+	}
+
+	/**
+	 * Handles a change made to a layer outside of the VFS.
+	 *
+	 * @param relPath Path of the changed file relative to its layer root, or
+	 * null if any file could have changed.
+	 * @param overlayLayer True if the change was made to the OvFS, false if to
+	 * the BaseFS.
+	 * @param type The type of the change.
+	 */
+	void handleExternalChange(String relPath, boolean overlayLayer, VFSChangeListener.ChangeType type) {
+		if (relPath == null) {
+			baseHashCache.clear();
+			DiskFileStatCache statCache = DiskFileStatCache.current();
+			if (statCache != null) {
+				statCache.clear();
 			}
+			if (index != null) {
+				index.invalidateAll();
+			}
+			fireFileChanged("", type);
+			return;
+		}
+		if (relPath.endsWith(VFSTransaction.TEMP_FILE_SUFFIX)) {
+			//Staging file of a transaction, the final file is handled once it is renamed
+			return;
+		}
+		String path = fs.getWildCardManager().getWildCardedPath(relPath);
+		if (isOwnWriteEvent(path, overlayLayer)) {
+			return;
+		}
+		invalidateIndex(path);
+		if (overlayLayer) {
+			Lock l = getPathLock(path).writeLock();
+			l.lock();
+			try {
+				handleExternalOvFSChange(path, type);
+			} finally {
+				l.unlock();
+			}
+		} else {
+			String prefix = path + "/";
+			baseHashCache.keySet().removeIf((key) -> key.equals(path) || key.startsWith(prefix));
+			if (applyManifest != null) {
+				applyManifest.removeEntry(path);
+			}
+		}
+		fireFileChanged(path, type);
+	}
+
+	private static String getOwnWriteKey(String path, boolean overlayLayer) {
+		return (overlayLayer ? "ovfs:" : "basefs:") + FSUtil.cleanPathFromRootSlash(path);
+	}
+
+	/**
+	 * Notifies the VFS that it is about to write into a file of the OvFS or
+	 * BaseFS itself. Until endOwnWrite is called, watcher events of the file
+	 * and of any files beneath it are not treated as external changes. Does
+	 * nothing if no watcher is running.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @param overlayLayer True if the file is in the OvFS, false if in the
+	 * BaseFS.
+	 */
+	public void beginOwnWrite(String path, boolean overlayLayer) {
+		if (watcher == null) {
+			return;
+		}
+		ownWrites.compute(getOwnWriteKey(path, overlayLayer), (key, w) -> {
+			if (w == null) {
+				w = new OwnWrite();
+			}
+			w.inFlight++;
+			w.beginTime = System.currentTimeMillis();
+			return w;
 		});
 	}
 
+	/**
+	 * Notifies the VFS that a write started with beginOwnWrite has ended. The
+	 * resulting state of the file, and of all files beneath it if it is a
+	 * directory, is recorded, and watcher events that arrive shortly after
+	 * are ignored as long as the files are still in that state.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @param overlayLayer True if the file is in the OvFS, false if in the
+	 * BaseFS.
+	 * @param file The written file.
+	 */
+	public void endOwnWrite(String path, boolean overlayLayer, FSFile file) {
+		if (watcher == null && ownWrites.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		recordOwnWrite(FSUtil.cleanPathFromRootSlash(path), overlayLayer, file, now, true);
+		if (now - lastOwnWriteSweep > OWN_WRITE_EVENT_WINDOW_MILLIS) {
+			lastOwnWriteSweep = now;
+			ownWrites.values().removeIf((w) -> w.isExpired(now));
+		}
+	}
+
+	private void recordOwnWrite(String path, boolean overlayLayer, FSFile file, long now, boolean endsWrite) {
+		boolean exists = file != null && file.exists();
+		boolean directory = exists && file.isDirectory();
+		int length = exists && !directory ? file.length() : -1;
+		long lastModified = exists && !directory ? file.lastModified() : 0;
+		ownWrites.compute(getOwnWriteKey(path, overlayLayer), (key, w) -> {
+			if (w == null) {
+				w = new OwnWrite();
+			}
+			if (endsWrite && w.inFlight > 0) {
+				w.inFlight--;
+			}
+			w.exists = exists;
+			w.length = length;
+			w.lastModified = lastModified;
+			w.endTime = now;
+			return w;
+		});
+		if (directory) {
+			for (FSFile child : file.listFiles()) {
+				recordOwnWrite(path + "/" + child.getName(), overlayLayer, child, now, false);
+			}
+		}
+	}
+
+	private boolean isOwnWriteEvent(String path, boolean overlayLayer) {
+		path = FSUtil.cleanPathFromRootSlash(path);
+		for (String p = path; !p.isEmpty(); p = FSUtil.getParentFilePath(p)) {
+			OwnWrite w = ownWrites.get(getOwnWriteKey(p, overlayLayer));
+			if (w != null && w.isInFlight(System.currentTimeMillis())) {
+				//Fired while the VFS is still writing
+				return true;
+			}
+			if (p.indexOf('/') == -1) {
+				break;
+			}
+		}
+		String key = getOwnWriteKey(path, overlayLayer);
+		OwnWrite w = ownWrites.get(key);
+		if (w == null) {
+			return false;
+		}
+		if (w.isExpired(System.currentTimeMillis())) {
+			ownWrites.remove(key, w);
+			return false;
+		}
+		FSFile file = fs.getFileFromRefPath(overlayLayer ? overlay : root, path);
+		boolean exists = file != null && file.exists();
+		if (exists != w.exists) {
+			ownWrites.remove(key, w);
+			return false;
+		}
+		if (exists && !file.isDirectory() && (file.length() != w.length || file.lastModified() != w.lastModified)) {
+			//Changed again since the VFS wrote it
+			ownWrites.remove(key, w);
+			return false;
+		}
+		return true;
+	}
+
+	private void handleExternalOvFSChange(String path, VFSChangeListener.ChangeType type) {
+		if (isFileChangeBlacklisted(path)) {
+			if (type == VFSChangeListener.ChangeType.DELETE) {
+				notifyFileChange(path);
+			} else {
+				FSFile ovFile = fs.getFileFromRefPath(overlay, path);
+				FSFile baseFile = getLowerLayerFile(path);
+				if (ovFile.isFile()) {
+					boolean changed = baseFile == null || !baseFile.isFile() || ovFile.length() != baseFile.length();
+					if (!changed) {
+						changed = !Objects.equals(ContentHash.hash(ovFile), getBaseFileHash(path, baseFile));
+					}
+					if (changed) {
+						System.out.println("File " + path + " has been changed externally. Removing from blacklist.");
+						notifyFileChange(path);
+					} else {
+						notifyOvFsFileUnchanged(path, ovFile);
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Gets the FSManager associated with this VFS.
 	 *
@@ -75,6 +394,215 @@ public class VFS {
 		hasChangeBlacklist = true;
 	}
 
+	/**
+	 * Creates an apply manifest at the given location and assigns it to this
+	 * VFS. Subsequent OvFS applications will skip files and archives whose
+	 * inputs have not changed since they were last applied.
+	 *
+	 * @param location A FSFile to persist the manifest in.
+	 */
+	public void createApplyManifest(FSFile location) {
+		applyManifest = new VFSApplyManifest(location);
+	}
+
+	/**
+	 * Gets the apply manifest of this VFS.
+	 *
+	 * @return The manifest, or null if none is assigned.
+	 */
+	public VFSApplyManifest getApplyManifest() {
+		return applyManifest;
+	}
+
+	/**
+	 * Starts a new transaction on this VFS. Changes staged in the transaction
+	 * are applied together once it is committed.
+	 *
+	 * @return
+	 */
+	public VFSTransaction beginTransaction() {
+		return new VFSTransaction(this);
+	}
+
+	void beginBlacklistBatch() {
+		if (hasChangeBlacklist) {
+			blacklist.beginBatch();
+		}
+	}
+
+	void endBlacklistBatch() {
+		if (hasChangeBlacklist) {
+			blacklist.endBatch();
+		}
+	}
+
+	/**
+	 * Attaches a persistent index to this VFS, loading a previously saved one
+	 * if it exists. The index is saved on shutdown.
+	 *
+	 * @param location FSFile location of the index.
+	 */
+	public void createIndex(FSFile location) {
+		index = new VFSIndex(this, location);
+	}
+
+	/**
+	 * Gets the index of this VFS.
+	 *
+	 * @return The index, or null if none is attached.
+	 */
+	public VFSIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Saves the index of this VFS, if one is attached and it has been
+	 * modified.
+	 */
+	public void saveIndex() {
+		if (index != null) {
+			index.write();
+		}
+	}
+
+	/**
+	 * Marks a path for revalidation in the index, if one is attached.
+	 *
+	 * @param path Wildcarded path of the changed file.
+	 */
+	public void invalidateIndex(String path) {
+		if (index != null) {
+			index.invalidate(path);
+		}
+	}
+
+	/**
+	 * Adds a read-only patch layer on top of the BaseFS and all previously
+	 * added patch layers, but below the OvFS. The contents of the layer are
+	 * indexed once when it is added.
+	 *
+	 * @param layerRoot Root directory of the layer.
+	 */
+	public void addLayer(FSFile layerRoot) {
+		patchLayers.add(new VFSLayerIndex(layerRoot, fs.getWildCardManager()));
+	}
+
+	/**
+	 * Removes a patch layer.
+	 *
+	 * @param layerRoot Root directory of the layer.
+	 */
+	public void removeLayer(FSFile layerRoot) {
+		patchLayers.removeIf((l) -> l.getRoot().equals(layerRoot));
+	}
+
+	/**
+	 * Re-indexes all patch layers, for use after their contents changed.
+	 */
+	public void rebuildLayerIndices() {
+		for (int i = 0; i < patchLayers.size(); i++) {
+			patchLayers.set(i, new VFSLayerIndex(patchLayers.get(i).getRoot(), fs.getWildCardManager()));
+		}
+	}
+
+	/**
+	 * Gets the patch layers of this VFS.
+	 *
+	 * @return The layer indices, ordered from the bottom to the top.
+	 */
+	public List<VFSLayerIndex> getLayers() {
+		return patchLayers;
+	}
+
+	/**
+	 * Gets the file below the OvFS that backs a path, which is the file in the
+	 * topmost patch layer containing the path, or the BaseFS file if no layer
+	 * contains it.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @return
+	 */
+	FSFile getLowerLayerFile(String path) {
+		String key = FSUtil.cleanPathFromRootSlash(path);
+		for (int i = patchLayers.size() - 1; i >= 0; i--) {
+			VFSLayerIndex layer = patchLayers.get(i);
+			if (layer.contains(key)) {
+				return fs.getFileFromRefPath(layer.getRoot(), key);
+			}
+		}
+		return fs.getFileFromRefPath(root, path);
+	}
+
+	/**
+	 * Gets the origin of a path below the OvFS, as per VFSIndex.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @return The index of the topmost patch layer containing the path plus
+	 * one, or VFSIndex.ORIGIN_BASEFS.
+	 */
+	int getLowerLayerOrigin(String path) {
+		String key = FSUtil.cleanPathFromRootSlash(path);
+		for (int i = patchLayers.size() - 1; i >= 0; i--) {
+			if (patchLayers.get(i).contains(key)) {
+				return i + 1;
+			}
+		}
+		return VFSIndex.ORIGIN_BASEFS;
+	}
+
+	/**
+	 * Gets the file at a path in a single layer.
+	 *
+	 * @param origin The layer, as per VFSIndex.
+	 * @param path Wildcarded path of the file.
+	 * @return
+	 */
+	FSFile getLayerFile(int origin, String path) {
+		switch (origin) {
+			case VFSIndex.ORIGIN_OVFS:
+				return fs.getFileFromRefPath(overlay, path);
+			case VFSIndex.ORIGIN_BASEFS:
+				return fs.getFileFromRefPath(root, path);
+			default:
+				return fs.getFileFromRefPath(patchLayers.get(origin - 1).getRoot(), path);
+		}
+	}
+
+	/**
+	 * Gets the names of all children of a directory in the patch layers.
+	 *
+	 * @param path Wildcarded path of the directory.
+	 * @return
+	 */
+	List<String> getLayerChildNames(String path) {
+		String key = FSUtil.cleanPathFromRootSlash(path);
+		List<String> names = new ArrayList<>();
+		for (VFSLayerIndex layer : patchLayers) {
+			for (String name : layer.getChildNames(key)) {
+				if (!names.contains(name)) {
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Checks if a path is a file contained in a patch layer.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @return
+	 */
+	boolean isInPatchLayer(String path) {
+		String key = FSUtil.cleanPathFromRootSlash(path);
+		for (VFSLayerIndex layer : patchLayers) {
+			if (layer.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Gets the root file of the base layer.
 	 *
@@ -109,12 +637,65 @@ public class VFS {
 	 * @param monitor A progress monitor interface.
 	 */
 	public void applyOvFS(String path, ProgressMonitor monitor) {
-		path = fs.getWildCardManager().getWildCardedPath(getRelativePath(path));
+		applyOvFSImpl(path, monitor);
+		if (applyManifest != null) {
+			applyManifest.write();
+		}
+	}
+
+	/**
+	 * Gets the file whose contents are applied to the BaseFS at a path. This
+	 * is the OvFS file, or the file of the topmost patch layer if the path is
+	 * not in the OvFS or the OvFS file is identical to it.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @return The file, or null if there is nothing to apply.
+	 */
+	private FSFile getApplySource(String path) {
 		FSFile ovFile = fs.getFileFromRefPath(overlay, path);
+		if (ovFile != null && ovFile.exists() && (ovFile.isDirectory() || !isFileChangeBlacklisted(path))) {
+			return ovFile;
+		}
+		if (getLowerLayerOrigin(path) != VFSIndex.ORIGIN_BASEFS) {
+			return getLowerLayerFile(path);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the names of the children of a directory in the OvFS and the patch
+	 * layers.
+	 */
+	private List<String> getApplyChildNames(String path) {
+		List<String> names = new ArrayList<>();
+		FSFile ovDir = fs.getFileFromRefPath(overlay, path);
+		if (ovDir != null && ovDir.isDirectory()) {
+			for (FSFile sub : ovDir.listFiles()) {
+				names.add(sub.getName());
+			}
+		}
+		for (String layerChild : getLayerChildNames(path)) {
+			if (!names.contains(layerChild)) {
+				names.add(layerChild);
+			}
+		}
+		return names;
+	}
+
+	private String getApplyChildPath(String path, String name) {
+		return fs.getWildCardManager().getWildCardedPath(path.isEmpty() ? name : path + "/" + name);
+	}
+
+	private void applyOvFSImpl(String path, ProgressMonitor monitor) {
+		path = FSUtil.cleanPathFromRootSlash(fs.getWildCardManager().getWildCardedPath(getRelativePath(path)));
+		FSFile source = getApplySource(path);
+		if (source == null) {
+			return;
+		}
 		FSFile target = fs.getFileFromRefPath(root, path);
 
 		if (target.exists()) {
-			if (ovFile.isDirectory()) {
+			if (source.isDirectory()) {
 				if (monitor != null) {
 					monitor.setProgressTitle("Packing directory " + path);
 					monitor.setProgressPercentage(0);
@@ -126,10 +707,10 @@ public class VFS {
 						monitor.setProgressPercentage(0);
 						monitor.setProgressSubTitle("Patching ArcFile...");
 					}
-					applyToArcFile(ovFile, ovFile, arc, monitor);
+					applyToArcFile(path, source, arc, monitor);
 				} else {
-					for (FSFile sub : ovFile.listFiles()) {
-						applyOvFS(sub.getPath(), monitor);
+					for (String childName : getApplyChildNames(path)) {
+						applyOvFSImpl(getApplyChildPath(path, childName), monitor);
 					}
 				}
 			} else {
@@ -139,25 +720,58 @@ public class VFS {
 						List<String> siblings = target.getParent().list();
 						monitor.setProgressPercentage((int) (siblings.indexOf(target.getPath()) / (float) siblings.size() * 100));
 					}
-					if (!isFileChangeBlacklisted(path)) {
+					VFSApplyManifest.Input input = applyManifest != null ? VFSApplyManifest.fileInput(source) : null;
+					if (input != null && applyManifest.isUpToDate(path, input, target)) {
+						System.out.println("Skip unchanged " + path);
+					} else {
 						System.out.println("Write " + path + " to " + target.getPath());
-						FSUtil.writeBytesToFile(target, FSUtil.readFileToBytes(ovFile));
+						beginOwnWrite(path, false);
+						try {
+							FSUtil.writeBytesToFile(target, FSUtil.readFileToBytes(source));
+						} finally {
+							endOwnWrite(path, false, target);
+						}
+						invalidateBaseFileHash(path);
+						if (applyManifest != null) {
+							applyManifest.putEntry(path, input, target);
+						}
 					}
 				}
 			}
 		} else {
-			if (ovFile instanceof ArcFile) {
-				ovFile = ((ArcFile) ovFile).getSource(); //If the ArcFile was kept, it would get extracted to the target because ArcFile is a directory
+			if (source instanceof ArcFile) {
+				source = ((ArcFile) source).getSource(); //If the ArcFile was kept, it would get extracted to the target because ArcFile is a directory
 			}
 
-			FSUtil.copy(ovFile, target);
+			beginOwnWrite(path, false);
+			try {
+				FSUtil.copy(source, target);
+			} finally {
+				endOwnWrite(path, false, target);
+			}
 		}
 	}
 
-	private void applyToArcFile(FSFile root, FSFile fsf, ArcFile arc, ProgressMonitor monitor) {
-		List<ArcInput> inputs = getArcInputs(root, fsf);
+	private void applyToArcFile(String path, FSFile root, ArcFile arc, ProgressMonitor monitor) {
+		List<ArcInput> inputs = new ArrayList<>();
+		collectArcInputs(path, "", inputs);
 		ensureDotArcExistence(inputs, root);
-		fs.getArcFileAccessor().writeToArcFile(arc, monitor, inputs.toArray(new ArcInput[inputs.size()]));
+		VFSApplyManifest.Input input = applyManifest != null ? VFSApplyManifest.arcInput(inputs) : null;
+		if (input != null && applyManifest.isUpToDate(path, input, arc)) {
+			System.out.println("Skip unchanged arcfile " + path);
+			return;
+		}
+		beginOwnWrite(path, false);
+		try {
+			fs.getArcFileAccessor().writeToArcFile(arc, monitor, inputs.toArray(new ArcInput[inputs.size()]));
+		} finally {
+			endOwnWrite(path, false, arc.getSource());
+		}
+		arc.invalidateMemberIndex();
+		baseHashCache.keySet().removeIf((key) -> key.startsWith(path + "/"));
+		if (applyManifest != null) {
+			applyManifest.putEntry(path, input, arc);
+		}
 	}
 
 	private static void ensureDotArcExistence(List<ArcInput> inputs, FSFile repackRoot) {
@@ -170,21 +784,29 @@ public class VFS {
 		inputs.add(dotArc);
 	}
 
-	private List<ArcInput> getArcInputs(FSFile root, FSFile fsf) {
-		List<ArcInput> inputs = new ArrayList<>();
-		if (fsf.isDirectory()) {
-			for (FSFile sub : fsf.listFiles()) {
-				inputs.addAll(getArcInputs(root, sub));
+	/**
+	 * Collects the files to write into an archive from its directory in the
+	 * OvFS and the patch layers.
+	 *
+	 * @param path Wildcarded path of the directory to collect.
+	 * @param pathInArc Path of the directory inside the archive.
+	 * @param inputs List to add the inputs to.
+	 */
+	private void collectArcInputs(String path, String pathInArc, List<ArcInput> inputs) {
+		for (String childName : getApplyChildNames(path)) {
+			String childPath = getApplyChildPath(path, childName);
+			String childPathInArc = pathInArc.isEmpty() ? childName : pathInArc + "/" + childName;
+			FSFile source = getApplySource(childPath);
+			if (source == null) {
+				continue;
 			}
-		} else {
-			ArcInput thisInput = new ArcInput(fsf.getPathRelativeTo(root), fsf);
-			String fsPath = fs.getWildCardManager().getWildCardedPath(getRelativePath(fsf.getPath()));
-			if (!isFileChangeBlacklisted(fsPath)) {
-				System.out.println("Include ArcInput " + fsPath);
-				inputs.add(thisInput);
+			if (source.isDirectory()) {
+				collectArcInputs(childPath, childPathInArc, inputs);
+			} else {
+				System.out.println("Include ArcInput " + childPath);
+				inputs.add(new ArcInput(childPathInArc, source));
 			}
 		}
-		return inputs;
 	}
 
 	/**
@@ -194,6 +816,7 @@ public class VFS {
 	 * @param changedPath Wildcarded path of the changed file.
 	 */
 	public void notifyFileChange(String changedPath) {
+		invalidateIndex(changedPath);
 		if (hasChangeBlacklist) {
 			blacklist.removePathFromBlacklist(changedPath);
 		}
@@ -206,6 +829,7 @@ public class VFS {
 	 * @param path Wildcarded path of the added file.
 	 */
 	public void notifyOvFsNewFileInit(String path) {
+		invalidateIndex(path);
 		if (hasChangeBlacklist) {
 			blacklist.putBlacklistPath(path);
 		}
@@ -219,11 +843,115 @@ public class VFS {
 	 * @param newPath Name of the path after renaming.
 	 */
 	public void relocateBlackListFile(String oldPath, String newPath) {
+		invalidateIndex(oldPath);
+		invalidateIndex(newPath);
 		if (hasChangeBlacklist) {
 			blacklist.relocatePaths(oldPath, newPath);
 		}
 	}
 
+	/**
+	 * Notifies the VFS that a blacklisted OvFS file has been compared to its
+	 * BaseFS counterpart and found identical. The lengths and modification
+	 * times of both files are stored in the blacklist, and as long as they do
+	 * not change, the comparison does not have to be repeated when the file
+	 * is cleaned up, even in a later session.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @param ovFile The OvFS file.
+	 */
+	public void notifyOvFsFileUnchanged(String path, FSFile ovFile) {
+		if (hasChangeBlacklist) {
+			FSFile baseFile = getLowerLayerFile(path);
+			if (baseFile != null && baseFile.isFile()) {
+				blacklist.putVerification(path, new VFSChangeBlacklist.Verification(ovFile, baseFile));
+			}
+		}
+	}
+
+	/**
+	 * Checks if an OvFS file is still identical to the file below it. Files
+	 * that have been verified as unchanged and whose length and modification
+	 * time have not changed since, in neither layer, are trusted without
+	 * reading them, unless they were modified within the modification time
+	 * resolution before the verification.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @param ovFile The OvFS file.
+	 * @return
+	 */
+	boolean isOvFileUnchanged(String path, FSFile ovFile) {
+		FSFile baseFile = getLowerLayerFile(path);
+		if (baseFile == null || !baseFile.isFile() || !ovFile.isFile()) {
+			return false;
+		}
+		if (ovFile.length() != baseFile.length()) {
+			return false;
+		}
+		VFSChangeBlacklist.Verification current = null;
+		if (hasChangeBlacklist) {
+			VFSChangeBlacklist.Verification verified = blacklist.getVerification(path);
+			if (verified != null && verified.matches(ovFile, baseFile)) {
+				return true;
+			}
+			current = new VFSChangeBlacklist.Verification(ovFile, baseFile);
+		}
+		boolean unchanged = Objects.equals(ContentHash.hash(ovFile), getBaseFileHash(path, baseFile));
+		if (unchanged && current != null) {
+			blacklist.putVerification(path, current);
+		}
+		return unchanged;
+	}
+
+	/**
+	 * Gets the content hash of a BaseFS file. The hash is cached for the
+	 * session and recalculated if the length or modification time of the file
+	 * changes or the VFS writes into it. Files that do not report a
+	 * modification time are hashed every time.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @param baseFile The BaseFS file at the path.
+	 * @return Hash of the file, as per ContentHash, or null if it is not a
+	 * file.
+	 */
+	public String getBaseFileHash(String path, FSFile baseFile) {
+		if (baseFile == null || !baseFile.isFile()) {
+			return null;
+		}
+		BaseFileHash cached = getCachedBaseFileHash(path, baseFile);
+		if (cached == null) {
+			int length = baseFile.length();
+			long lastModified = baseFile.lastModified();
+			String hash = ContentHash.hash(baseFile);
+			if (hash == null) {
+				return null;
+			}
+			cached = new BaseFileHash(hash, length, lastModified);
+			if (lastModified != 0) {
+				baseHashCache.put(path, cached);
+			}
+		}
+		return cached.hash;
+	}
+
+	private BaseFileHash getCachedBaseFileHash(String path, FSFile baseFile) {
+		BaseFileHash cached = baseHashCache.get(path);
+		if (cached != null && (cached.length != baseFile.length() || cached.lastModified != baseFile.lastModified())) {
+			baseHashCache.remove(path, cached);
+			return null;
+		}
+		return cached;
+	}
+
+	/**
+	 * Removes a BaseFS file from the content hash cache.
+	 *
+	 * @param path Wildcarded path of the file.
+	 */
+	public void invalidateBaseFileHash(String path) {
+		baseHashCache.remove(path);
+	}
+
 	/**
 	 * Checks if a file path is in the blacklist.
 	 *
@@ -252,11 +980,20 @@ public class VFS {
 		if (path.startsWith("/")) {
 			path = path.substring(1);
 		}
+		VFSIndex idx = index;
+		if (idx != null) {
+			int origin = idx.getOrigin(path);
+			if (origin == VFSIndex.ORIGIN_OVFS) {
+				return new VFSFile(path, this);
+			} else if (origin != VFSIndex.ORIGIN_NONE) {
+				return new VFSFile(path, this, getLowerLayerFile(path));
+			}
+		}
 		boolean isExistingBase = false;
 		FSFile existing = fs.getFileFromRefPath(overlay, path);
 		if (existing != null && !existing.exists()) {
 			isExistingBase = true;
-			existing = fs.getFileFromRefPath(root, path);
+			existing = getLowerLayerFile(path);
 		}
 		FSFile result;
 		if (existing != null && existing.exists()) {
@@ -278,7 +1015,12 @@ public class VFS {
 				}
 				//If expandArcs is allowed, this takes into account ArcFiles in origin and casts them accordingly
 				//The ArcFileAccessor will then deliver the extracted ArcFileMember with its implementation
-				FSFile origin = root.getMatchingChild(result.getPathRelativeTo(overlay), fs.getWildCardManager());
+				String tokenPath = result.getPathRelativeTo(overlay);
+				if (idx != null && !idx.isArcFile(fs.getWildCardManager().getWildCardedPath(tokenPath))) {
+					//The index knows all BaseFS archives, no need to probe
+					continue;
+				}
+				FSFile origin = root.getMatchingChild(tokenPath, fs.getWildCardManager());
 				if (origin != null && afa.isArcFile(origin)) {
 					//System.out.println("Expanding ArcFile " + origin.getPath());
 					ArcFile af = new ArcFile(origin, afa);
@@ -311,4 +1053,39 @@ public class VFS {
 		path = FSFile.getPathRelativeTo(path, root.getPath());
 		return path;
 	}
+
+	private static class OwnWrite {
+
+		public int inFlight = 0;
+		public long beginTime;
+
+		public boolean exists;
+		public int length;
+		public long lastModified;
+		public long endTime = Long.MAX_VALUE;
+
+		public boolean isInFlight(long now) {
+			return inFlight > 0 && now - beginTime <= OWN_WRITE_MAX_IN_FLIGHT_MILLIS;
+		}
+
+		public boolean isExpired(long now) {
+			if (inFlight > 0) {
+				return !isInFlight(now);
+			}
+			return now - endTime > OWN_WRITE_EVENT_WINDOW_MILLIS;
+		}
+	}
+
+	private static class BaseFileHash {
+
+		public final String hash;
+		public final int length;
+		public final long lastModified;
+
+		public BaseFileHash(String hash, int length, long lastModified) {
+			this.hash = hash;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
 }
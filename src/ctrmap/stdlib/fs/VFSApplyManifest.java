@@ -0,0 +1,267 @@
+package ctrmap.stdlib.fs;
+
+import ctrmap.stdlib.crypto.ContentHash;
+import ctrmap.stdlib.fs.accessors.arc.ArcInput;
+import ctrmap.stdlib.io.base.impl.ext.data.DataInStream;
+import ctrmap.stdlib.io.base.impl.ext.data.DataOutStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent record of the OvFS contents that were last applied to the
+ * BaseFS, allowing unchanged files and archives to be skipped on the next
+ * application.
+ */
+public class VFSApplyManifest {
+
+	//Marks the format that stores modification times, older manifests are discarded
+	private static final String FORMAT_MAGIC = "<VFSAM2>";
+
+	private final FSFile location;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private volatile boolean modified = false;
+
+	/**
+	 * Creates an apply manifest at the given location, loading its previous
+	 * contents if present.
+	 *
+	 * @param location FSFile location of the manifest.
+	 */
+	public VFSApplyManifest(FSFile location) {
+		this.location = location;
+		try {
+			if (location.isFile()) {
+				DataInStream in = new DataInStream(location.getInputStream());
+				int len = in.getLength();
+				if (len > 0 && in.readString().equals(FORMAT_MAGIC)) {
+					while (in.getPosition() < len) {
+						String path = in.readString();
+						String hash = in.readString();
+						String inputStamp = in.readString();
+						int targetLength = in.readInt();
+						long targetLastModified = in.readLong();
+						long time = in.readLong();
+						entries.put(path, new Entry(hash, inputStamp.isEmpty() ? null : inputStamp, targetLength, targetLastModified, time));
+					}
+				} else {
+					//Without the modification times, same-sized targets could not be told apart
+					modified = true;
+				}
+				in.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(VFSApplyManifest.class.getName()).log(Level.SEVERE, null, ex);
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Checks if an input has already been applied to a target.
+	 *
+	 * @param path Wildcarded path of the input.
+	 * @param input The input.
+	 * @param target The file the input was applied to.
+	 * @return True if the last application used the same input and the target
+	 * has not changed its length or modification time since.
+	 */
+	boolean isUpToDate(String path, Input input, FSFile target) {
+		Entry e = entries.get(path);
+		if (e == null || !target.isFile() || target.length() != e.targetLength || target.lastModified() != e.targetLastModified) {
+			return false;
+		}
+		if (input.stamp != null && input.stamp.equals(e.inputStamp) && FSUtil.isLastModifiedSettled(input.newestLastModified, e.time)) {
+			//Same lengths and modification times as when the input was hashed
+			return true;
+		}
+		String hash = input.getHash();
+		return hash != null && e.hash.equals(hash);
+	}
+
+	/**
+	 * Records an input as applied to a target.
+	 *
+	 * @param path Wildcarded path of the input.
+	 * @param input The input.
+	 * @param target The file the input was applied to.
+	 */
+	void putEntry(String path, Input input, FSFile target) {
+		String hash = input.getHash();
+		if (hash == null) {
+			removeEntry(path);
+			return;
+		}
+		entries.put(path, new Entry(hash, input.stamp, target.length(), target.lastModified(), System.currentTimeMillis()));
+		modified = true;
+	}
+
+	/**
+	 * Removes the record of an input.
+	 *
+	 * @param path Wildcarded path of the input.
+	 */
+	void removeEntry(String path) {
+		if (entries.remove(path) != null) {
+			modified = true;
+		}
+	}
+
+	/**
+	 * Creates the input of a single file.
+	 *
+	 * @param file The OvFS file.
+	 * @return
+	 */
+	static Input fileInput(FSFile file) {
+		long lastModified = file.lastModified();
+		String stamp = lastModified == 0 ? null : file.length() + ":" + lastModified;
+		return new Input(stamp, lastModified, () -> ContentHash.hash(file));
+	}
+
+	/**
+	 * Creates the combined input of a set of archive inputs.
+	 *
+	 * @param inputs The archive inputs.
+	 * @return
+	 */
+	static Input arcInput(List<ArcInput> inputs) {
+		StringBuilder sb = new StringBuilder();
+		long newestLastModified = 0;
+		boolean stampable = true;
+		for (ArcInput in : inputs) {
+			appendArcInputKey(sb, in);
+			if (in.data != null && in.data.exists()) {
+				long lastModified = in.data.lastModified();
+				if (lastModified == 0) {
+					stampable = false;
+				}
+				newestLastModified = Math.max(newestLastModified, lastModified);
+				sb.append(in.data.length());
+				sb.append(':');
+				sb.append(lastModified);
+			} else {
+				sb.append('-');
+			}
+			sb.append('\n');
+		}
+		String stamp = stampable ? ContentHash.hash(sb.toString().getBytes(StandardCharsets.UTF_8)) : null;
+		return new Input(stamp, newestLastModified, () -> hashArcInputs(inputs));
+	}
+
+	private static void appendArcInputKey(StringBuilder sb, ArcInput in) {
+		sb.append(in.targetPath);
+		sb.append('\0');
+		sb.append(in.compressLZ ? '1' : '0');
+		sb.append(in.compressAuto ? '1' : '0');
+	}
+
+	/**
+	 * Calculates a combined hash of a set of archive inputs.
+	 *
+	 * @param inputs The archive inputs.
+	 * @return A hash of the target paths, compression flags and contents of
+	 * the inputs, or null if any of them could not be hashed.
+	 */
+	static String hashArcInputs(Iterable<ArcInput> inputs) {
+		StringBuilder sb = new StringBuilder();
+		for (ArcInput in : inputs) {
+			String dataHash = ContentHash.hash(in.data);
+			if (dataHash == null) {
+				if (in.data != null && in.data.exists()) {
+					return null;
+				}
+				dataHash = "-";
+			}
+			appendArcInputKey(sb, in);
+			sb.append(dataHash);
+			sb.append('\n');
+		}
+		return ContentHash.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes the manifest to its location, if it has been modified.
+	 */
+	public void write() {
+		if (!modified) {
+			return;
+		}
+		try {
+			DataOutStream dos = new DataOutStream(location.getOutputStream());
+			dos.writeString(FORMAT_MAGIC);
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry v = e.getValue();
+				dos.writeString(e.getKey());
+				dos.writeString(v.hash);
+				dos.writeString(v.inputStamp == null ? "" : v.inputStamp);
+				dos.writeInt(v.targetLength);
+				dos.writeLong(v.targetLastModified);
+				dos.writeLong(v.time);
+			}
+			dos.close();
+			modified = false;
+		} catch (IOException ex) {
+			Logger.getLogger(VFSApplyManifest.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	/**
+	 * Discards all records, forcing a full application on the next run.
+	 */
+	public void clear() {
+		entries.clear();
+		modified = true;
+	}
+
+	/**
+	 * An input to be applied, hashed only if its lengths and modification
+	 * times do not prove it unchanged.
+	 */
+	static class Input {
+
+		public final String stamp;
+		public final long newestLastModified;
+
+		private final Supplier<String> hasher;
+		private String hash;
+		private boolean hashed = false;
+
+		private Input(String stamp, long newestLastModified, Supplier<String> hasher) {
+			this.stamp = stamp;
+			this.newestLastModified = newestLastModified;
+			this.hasher = hasher;
+		}
+
+		public String getHash() {
+			if (!hashed) {
+				hash = hasher.get();
+				hashed = true;
+			}
+			return hash;
+		}
+	}
+
+	private static class Entry {
+
+		public final String hash;
+		public final String inputStamp;
+		public final int targetLength;
+		public final long targetLastModified;
+		public final long time;
+
+		public Entry(String hash, String inputStamp, int targetLength, long targetLastModified, long time) {
+			this.hash = hash;
+			this.inputStamp = inputStamp;
+			this.targetLength = targetLength;
+			this.targetLastModified = targetLastModified;
+			this.time = time;
+		}
+	}
+}
@@ -1,11 +1,21 @@
 package ctrmap.stdlib.fs;
 
 import ctrmap.stdlib.gui.DialogUtils;
+import ctrmap.stdlib.thread.ThreadingUtils;
 import ctrmap.stdlib.io.base.impl.ext.data.DataInStream;
 import ctrmap.stdlib.io.base.impl.ext.data.DataOutStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,10 +26,20 @@ public class VFSChangeBlacklist {
 
 	private final VFS fs;
 
-	private List<String> blacklistedPaths = new ArrayList<>();
+	//Marks the format that stores verifications along with the paths
+	private static final String FORMAT_MAGIC_NO_TIME = "<VFSBL2>";
+	private static final String FORMAT_MAGIC = "<VFSBL3>";
+
+	private Set<String> blacklistedPaths = new LinkedHashSet<>();
+	private final Map<String, Verification> verifications = new HashMap<>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
 	private FSFile tempBlacklistLocation;
 
+	private int batchDepth = 0;
+	private boolean batchDirty = false;
+
 	/**
 	 * Creates a change blacklist at the given location, using a VFS. If a file is already present in the location, a user decision dialog is shown.
 	 *
@@ -43,9 +63,25 @@ public class VFSChangeBlacklist {
 						+ "Do you want to restore the last session's blacklist?"
 					);
 					if (restore) {
+						boolean hasVerifications = false;
+						boolean hasTimes = false;
 						while (in.getPosition() < len) {
 							String path = in.readString();
+							if (!hasVerifications && blacklistedPaths.isEmpty() && (path.equals(FORMAT_MAGIC) || path.equals(FORMAT_MAGIC_NO_TIME))) {
+								hasVerifications = true;
+								hasTimes = path.equals(FORMAT_MAGIC);
+								continue;
+							}
 							blacklistedPaths.add(path);
+							if (hasVerifications && in.read() != 0) {
+								int ovLength = in.readInt();
+								long ovLastModified = in.readLong();
+								int baseLength = in.readInt();
+								long baseLastModified = in.readLong();
+								//Verifications without a time are never trusted, but are read to skip them
+								long time = hasTimes ? in.readLong() : 0;
+								verifications.put(path, new Verification(ovLength, ovLastModified, baseLength, baseLastModified, time));
+							}
 						}
 					}
 				}
@@ -57,7 +93,12 @@ public class VFSChangeBlacklist {
 	}
 
 	boolean hasPath(String path) {
-		return blacklistedPaths.contains(path);
+		lock.readLock().lock();
+		try {
+			return blacklistedPaths.contains(path);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	void putBlacklistPath(String path) {
@@ -65,31 +106,136 @@ public class VFSChangeBlacklist {
 			throw new IllegalArgumentException("Path can not be null.");
 		}
 		path = fs.getFS().getWildCardManager().getWildCardedPath(path);
-		if (!blacklistedPaths.contains(path)) {
-			blacklistedPaths.add(path);
-			writeToIO();
+		lock.writeLock().lock();
+		try {
+			if (blacklistedPaths.add(path)) {
+				writeToIO();
+			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
 	void removePathFromBlacklist(String path) {
-		blacklistedPaths.remove(path);
-		writeToIO();
+		lock.writeLock().lock();
+		try {
+			blacklistedPaths.remove(path);
+			verifications.remove(path);
+			writeToIO();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	void relocatePaths(String path, String toReplace) {
-		for (int i = 0; i < blacklistedPaths.size(); i++) {
-			String str = blacklistedPaths.get(i);
-			if (str.contains(path)) {
-				blacklistedPaths.set(i, str.replace(path, toReplace));
+		lock.writeLock().lock();
+		try {
+			Set<String> relocated = new LinkedHashSet<>();
+			for (String str : blacklistedPaths) {
+				if (str.contains(path)) {
+					relocated.add(str.replace(path, toReplace));
+					verifications.remove(str);
+				} else {
+					relocated.add(str);
+				}
+			}
+			verifications.remove(toReplace);
+			blacklistedPaths = relocated;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Records that a blacklisted file has been found identical to the file
+	 * below it. Does nothing if the path is not blacklisted.
+	 *
+	 * The blacklist file is not rewritten for this, the verification is saved
+	 * along with the next change of the blacklisted paths. A verification lost
+	 * in a crash only means that the file is compared again.
+	 *
+	 * @param path Wildcarded path of the file.
+	 * @param v State of the files when they were compared.
+	 */
+	void putVerification(String path, Verification v) {
+		lock.writeLock().lock();
+		try {
+			if (blacklistedPaths.contains(path)) {
+				verifications.put(path, v);
 			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	Verification getVerification(String path) {
+		lock.readLock().lock();
+		try {
+			return verifications.get(path);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<String> getPathsSnapshot() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<>(blacklistedPaths);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Defers writing the blacklist to its location until the matching
+	 * endBatch call. Batches may be nested.
+	 */
+	void beginBatch() {
+		lock.writeLock().lock();
+		try {
+			batchDepth++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Ends a batch, writing the blacklist once if it has changed during the
+	 * outermost batch.
+	 */
+	void endBatch() {
+		lock.writeLock().lock();
+		try {
+			if (batchDepth > 0 && --batchDepth == 0 && batchDirty) {
+				batchDirty = false;
+				writeToIO();
+			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
 	private void writeToIO() {
+		if (batchDepth > 0) {
+			batchDirty = true;
+			return;
+		}
 		try {
 			DataOutStream dos = new DataOutStream(tempBlacklistLocation.getOutputStream());
-			for (String blp : new ArrayList<>(blacklistedPaths)) {
+			dos.writeString(FORMAT_MAGIC);
+			for (String blp : blacklistedPaths) {
 				dos.writeString(blp);
+				Verification v = verifications.get(blp);
+				if (v == null) {
+					dos.write(0);
+				} else {
+					dos.write(1);
+					dos.writeInt(v.ovLength);
+					dos.writeLong(v.ovLastModified);
+					dos.writeInt(v.baseLength);
+					dos.writeLong(v.baseLastModified);
+					dos.writeLong(v.time);
+				}
 			}
 			dos.close();
 		} catch (IOException ex) {
@@ -114,15 +260,94 @@ public class VFSChangeBlacklist {
 		doRemoveFiles(ovfsRoot);
 	}
 
+	/**
+	 * Removes all blacklisted files under a root directory that are still
+	 * identical to their BaseFS counterparts. The files are processed in
+	 * parallel on a bounded number of threads.
+	 *
+	 * @param root The OvFS root directory.
+	 */
 	public void doRemoveFiles(FSFile root) {
-		for (String blPath : blacklistedPaths) {
+		List<String> paths = getPathsSnapshot();
+		if (paths.isEmpty()) {
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (String blPath : paths) {
+			tasks.add(() -> {
+				removeFile(root, blPath);
+				return null;
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(paths.size(), FSUtil.DEFAULT_TREE_OP_PARALLELISM));
+		try {
+			executor.invokeAll(tasks);
+		} catch (InterruptedException ex) {
+			Logger.getLogger(VFSChangeBlacklist.class.getName()).log(Level.SEVERE, null, ex);
+		} finally {
+			ThreadingUtils.shutdownWaitService(executor);
+		}
+	}
+
+	private void removeFile(FSFile root, String blPath) {
+		FSFile victim = root.getMatchingChild(blPath, fs.getFS().getWildCardManager());
+		if (victim == null || !victim.exists()) {
+			System.out.println("Failed to remove file " + blPath + " (not found in OvFS).");
+		} else if (!fs.isOvFileUnchanged(blPath, victim)) {
+			System.out.println("Keeping file " + blPath + " (changed since being blacklisted).");
+		} else {
 			System.out.println("Removing file " + blPath);
-			FSFile victim = root.getMatchingChild(blPath, fs.getFS().getWildCardManager());
-			if (victim != null) {
-				victim.delete();
-			} else {
-				System.out.println("Failed to remove file (not found in OvFS).");
-			}
+			victim.delete();
+		}
+	}
+
+	/**
+	 * Lengths and modification times of a blacklisted OvFS file and the file
+	 * below it at the time they were found identical.
+	 */
+	static class Verification {
+
+		public final int ovLength;
+		public final long ovLastModified;
+		public final int baseLength;
+		public final long baseLastModified;
+		public final long time;
+
+		/**
+		 * Records the current state of two files. Should be created before
+		 * the files are compared, so that changes made during the comparison
+		 * are not attributed to the verified state.
+		 *
+		 * @param ovFile The OvFS file.
+		 * @param baseFile The file below it.
+		 */
+		public Verification(FSFile ovFile, FSFile baseFile) {
+			this(ovFile.length(), ovFile.lastModified(), baseFile.length(), baseFile.lastModified(), System.currentTimeMillis());
+		}
+
+		public Verification(int ovLength, long ovLastModified, int baseLength, long baseLastModified, long time) {
+			this.ovLength = ovLength;
+			this.ovLastModified = ovLastModified;
+			this.baseLength = baseLength;
+			this.baseLastModified = baseLastModified;
+			this.time = time;
+		}
+
+		/**
+		 * Checks if neither of the files has changed since the verification.
+		 * Files without a modification time never match, and neither do files
+		 * that were modified too shortly before the verification, since they
+		 * could have been changed again without their modification time
+		 * changing.
+		 *
+		 * @param ovFile The OvFS file.
+		 * @param baseFile The file below it.
+		 * @return
+		 */
+		public boolean matches(FSFile ovFile, FSFile baseFile) {
+			return FSUtil.isLastModifiedSettled(ovLastModified, time) && FSUtil.isLastModifiedSettled(baseLastModified, time)
+				&& ovFile.length() == ovLength && ovFile.lastModified() == ovLastModified
+				&& baseFile.length() == baseLength && baseFile.lastModified() == baseLastModified;
 		}
 	}
 }
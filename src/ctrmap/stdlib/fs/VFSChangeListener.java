@@ -0,0 +1,31 @@
+package ctrmap.stdlib.fs;
+
+/**
+ * Receiver of file change notifications from a VFS.
+ */
+public interface VFSChangeListener {
+
+	/**
+	 * Called when a file in one of the VFS layers has changed.
+	 *
+	 * @param path Wildcarded VFS path of the file, or an empty string if the
+	 * whole file system should be considered changed.
+	 * @param type The type of the change.
+	 */
+	public void fileChanged(String path, ChangeType type);
+
+	public static enum ChangeType {
+		/**
+		 * A file has been created.
+		 */
+		CREATE,
+		/**
+		 * The contents of a file have been modified.
+		 */
+		MODIFY,
+		/**
+		 * A file has been deleted.
+		 */
+		DELETE
+	}
+}
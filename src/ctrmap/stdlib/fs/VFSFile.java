@@ -1,12 +1,15 @@
 package ctrmap.stdlib.fs;
 
+import ctrmap.stdlib.fs.accessors.io.CopyOnWriteIOStream;
 import ctrmap.stdlib.fs.accessors.io.MonitoredFSIO;
 import ctrmap.stdlib.fs.accessors.io.MonitoredFSOutputStream;
 import ctrmap.stdlib.io.base.iface.IOStream;
 import ctrmap.stdlib.io.base.iface.ReadableStream;
 import ctrmap.stdlib.io.base.iface.WriteableStream;
+import ctrmap.stdlib.thread.StripedReadWriteLock;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 public class VFSFile extends FSFile {
 
@@ -15,7 +18,7 @@ public class VFSFile extends FSFile {
 	private FSFile rootfs;
 	private FSFile ovfs;
 
-	private String path;
+	private volatile String path;
 	private FSFile baseFile;
 	private FSFile ovFile;
 
@@ -26,7 +29,7 @@ public class VFSFile extends FSFile {
 		this.path = fsm.getWildCardManager().getWildCardedPath(path);
 		this.rootfs = fs.getBaseFSRoot();
 		this.ovfs = fs.getOvFSRoot();
-		baseFile = fsm.getFileFromRefPath(rootfs, path);
+		baseFile = fs.getLowerLayerFile(path);
 		ovFile = fsm.getFileFromRefPath(ovfs, path);
 	}
 
@@ -42,7 +45,8 @@ public class VFSFile extends FSFile {
 	}
 
 	/**
-	 * Gets the file linked to this VFSFile in the BaseFS.
+	 * Gets the file linked to this VFSFile below the OvFS. This is the file in
+	 * the topmost patch layer that contains it, or the BaseFS file otherwise.
 	 *
 	 * @return
 	 */
@@ -101,12 +105,36 @@ public class VFSFile extends FSFile {
 
 	@Override
 	public void mkdir() {
-		ovFile.mkdir();
+		Lock l = fs.getPathLock(path).writeLock();
+		l.lock();
+		try {
+			fs.beginOwnWrite(path, true);
+			try {
+				ovFile.mkdir();
+			} finally {
+				fs.endOwnWrite(path, true, ovFile);
+			}
+			fs.invalidateIndex(path);
+		} finally {
+			l.unlock();
+		}
 	}
 
 	@Override
 	public void delete() {
-		ovFile.delete();
+		Lock l = fs.getPathLock(path).writeLock();
+		l.lock();
+		try {
+			fs.beginOwnWrite(path, true);
+			try {
+				ovFile.delete();
+			} finally {
+				fs.endOwnWrite(path, true, ovFile);
+			}
+			fs.invalidateIndex(path);
+		} finally {
+			l.unlock();
+		}
 	}
 
 	@Override
@@ -131,13 +159,25 @@ public class VFSFile extends FSFile {
 
 	@Override
 	public ReadableStream getInputStream() {
-		return getExistingFile().getInputStream();
+		Lock l = fs.getPathLock(path).readLock();
+		l.lock();
+		try {
+			return getExistingFile().getInputStream();
+		} finally {
+			l.unlock();
+		}
 	}
 
 	@Override
 	public WriteableStream getOutputStream() {
-		ensureOvParentExists();
-		return new MonitoredFSOutputStream(this);
+		Lock l = fs.getPathLock(path).writeLock();
+		l.lock();
+		try {
+			ensureOvParentExists();
+			return new MonitoredFSOutputStream(this);
+		} finally {
+			l.unlock();
+		}
 	}
 
 	private void ensureOvParentExists() {
@@ -148,24 +188,72 @@ public class VFSFile extends FSFile {
 
 	@Override
 	public IOStream getIO() {
-		if (!ovFile.exists()) {
-			ensureOvParentExists();
-			FSUtil.copy(baseFile, ovFile);
-			fs.notifyOvFsNewFileInit(getPath());
+		Lock l = fs.getPathLock(path).writeLock();
+		l.lock();
+		try {
+			if (!ovFile.exists()) {
+				ensureOvParentExists();
+				if (baseFile != null && baseFile.isFile()) {
+					//Only the written blocks are kept, the OvFS file is created on close if the data has changed
+					return new MonitoredFSIO(this, new CopyOnWriteIOStream(baseFile, ovFile));
+				}
+				fs.beginOwnWrite(path, true);
+				try {
+					FSUtil.copy(baseFile, ovFile);
+				} finally {
+					fs.endOwnWrite(path, true, ovFile);
+				}
+				fs.notifyOvFsNewFileInit(getPath());
+			}
+			return new MonitoredFSIO(this);
+		} finally {
+			l.unlock();
 		}
-		return new MonitoredFSIO(this);
+	}
+
+	private FSFile getBaseFSFile() {
+		if (fs.getLayers().isEmpty()) {
+			return baseFile;
+		}
+		return fs.getFS().getFileFromRefPath(rootfs, path);
 	}
 
 	@Override
 	public List<FSFile> listFiles() {
+		VFSIndex index = fs.getIndex();
+		if (index != null) {
+			List<String> childPaths = index.getChildPaths(path);
+			List<FSFile> vfsChildren = new ArrayList<>();
+			if (childPaths != null) {
+				for (String childPath : childPaths) {
+					vfsChildren.add(new VFSFile(childPath, fs));
+				}
+			}
+			return vfsChildren;
+		}
+
 		List<? extends FSFile> ovChildren = ovFile.listFiles();
-		List<? extends FSFile> baseChildren = baseFile.listFiles();
+		List<? extends FSFile> baseChildren = getBaseFSFile().listFiles();
+		boolean hasLayers = !fs.getLayers().isEmpty();
 
 		List<FSFile> vfsChildren = new ArrayList<>();
 
 		for (FSFile base : baseChildren) {
+			String childPath = path + "/" + base.getName();
 			//doesn't HAVE to exist
-			vfsChildren.add(new VFSFile(path + "/" + base.getName(), fs, base));
+			if (hasLayers && fs.isInPatchLayer(childPath)) {
+				vfsChildren.add(new VFSFile(childPath, fs));
+			} else {
+				vfsChildren.add(new VFSFile(childPath, fs, base));
+			}
+		}
+
+		if (hasLayers) {
+			for (String layerChild : fs.getLayerChildNames(path)) {
+				if (findByName(vfsChildren, layerChild) == null) {
+					vfsChildren.add(new VFSFile(path + "/" + layerChild, fs));
+				}
+			}
 		}
 
 		for (FSFile ov : ovChildren) {
@@ -188,13 +276,38 @@ public class VFSFile extends FSFile {
 	}
 
 	private int vfsGetChildCountImpl(boolean includeHidden) {
+		VFSIndex index = fs.getIndex();
+		if (index != null) {
+			List<String> childPaths = index.getChildPaths(path);
+			if (childPaths == null) {
+				return 0;
+			}
+			int count = childPaths.size();
+			if (!includeHidden) {
+				for (String childPath : childPaths) {
+					if (FSUtil.getFileName(childPath).startsWith(".")) {
+						count--;
+					}
+				}
+			}
+			return count;
+		}
+
 		List<? extends FSFile> ovChildren = ovFile.listFiles();
-		List<? extends FSFile> baseChildren = baseFile.listFiles();
+		List<? extends FSFile> baseChildren = getBaseFSFile().listFiles();
 
 		List<FSFile> result = new ArrayList<>(baseChildren);
 
+		if (!fs.getLayers().isEmpty()) {
+			for (String layerChild : fs.getLayerChildNames(path)) {
+				if (findByName(result, layerChild) == null) {
+					result.add(new VFSFile(path + "/" + layerChild, fs));
+				}
+			}
+		}
+
 		for (FSFile ov : ovChildren) {
-			if (findByName(baseChildren, ov.getName()) == null) {
+			if (findByName(result, ov.getName()) == null) {
 				result.add(ov);
 			}
 		}
@@ -218,10 +331,52 @@ public class VFSFile extends FSFile {
 
 		newPath = wcm.getWildCardedPath(newPath);
 
-		baseFile.setPath(wcm.getNonWildCardedPathByActual(rootfs + "/" + newPath, baseFile.getPath()));
-		ovFile.setPath(wcm.getNonWildCardedPathByActual(ovfs + "/" + newPath, ovFile.getPath()));
+		Lock[] locks = fs.getPathLocks().lockAllForWrite(path, newPath);
+		try {
+			renameLocked(newPath);
+		} finally {
+			StripedReadWriteLock.unlockAll(locks);
+		}
+	}
+
+	/**
+	 * Renames the file while the caller holds the write locks of both the old
+	 * and the new path.
+	 *
+	 * @param newPath Wildcarded path after renaming.
+	 */
+	void renameLocked(String newPath) {
+		FSWildCardManager wcm = fs.getFS().getWildCardManager();
+		//Patch layers are read-only
+		boolean renameBase = !fs.isInPatchLayer(path);
+		String oldPath = path;
+		fs.beginOwnWrite(oldPath, true);
+		fs.beginOwnWrite(newPath, true);
+		if (renameBase) {
+			fs.beginOwnWrite(oldPath, false);
+			fs.beginOwnWrite(newPath, false);
+		}
+		try {
+			if (renameBase) {
+				baseFile.setPath(wcm.getNonWildCardedPathByActual(rootfs + "/" + newPath, baseFile.getPath()));
+			}
+			ovFile.setPath(wcm.getNonWildCardedPathByActual(ovfs + "/" + newPath, ovFile.getPath()));
+		} finally {
+			fs.endOwnWrite(oldPath, true, fs.getLayerFile(VFSIndex.ORIGIN_OVFS, oldPath));
+			fs.endOwnWrite(newPath, true, fs.getLayerFile(VFSIndex.ORIGIN_OVFS, newPath));
+			if (renameBase) {
+				fs.endOwnWrite(oldPath, false, fs.getLayerFile(VFSIndex.ORIGIN_BASEFS, oldPath));
+				fs.endOwnWrite(newPath, false, fs.getLayerFile(VFSIndex.ORIGIN_BASEFS, newPath));
+			}
+		}
 
 		fs.relocateBlackListFile(path, newPath);
+		VFSApplyManifest manifest = fs.getApplyManifest();
+		if (manifest != null) {
+			//Both paths have to be applied again
+			manifest.removeEntry(oldPath);
+			manifest.removeEntry(newPath);
+		}
 		path = newPath;
 	}
 
@@ -229,4 +384,9 @@ public class VFSFile extends FSFile {
 	public int getPermissions() {
 		return getExistingFile().getPermissions();
 	}
+
+	@Override
+	public long lastModified() {
+		return getExistingFile().lastModified();
+	}
 }
@@ -0,0 +1,519 @@
+package ctrmap.stdlib.fs;
+
+import ctrmap.stdlib.fs.accessors.arc.ArcFileAccessor;
+import ctrmap.stdlib.io.base.impl.ext.data.DataInStream;
+import ctrmap.stdlib.io.base.impl.ext.data.DataOutStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent snapshot of the merged VFS tree.
+ *
+ * The index records the layer of origin, type, size, modification time and
+ * archive status of every file it has seen, along with the directory
+ * listings of the BaseFS and OvFS. It is filled in lazily as paths are
+ * queried and can be saved to a compact binary file, so that the next session
+ * does not have to list the layers and probe archives again.
+ *
+ * Saved data is validated lazily as well. When an entry is first queried in a
+ * session, its modification time is compared against its layer, and
+ * directories are re-listed only if their modification time in either layer
+ * has changed. While the VFS watcher reports external changes to both layers,
+ * validated data is then served from memory until it is invalidated, which
+ * the VFS does for its own writes and for the reported changes. Without the
+ * watcher, the modification times are compared again on every query, so that
+ * files changed by other programs are seen as well. Like in most mtime-based
+ * indices, a modification time too close to the time it was indexed is not
+ * trusted, since the file could have changed again within the resolution of
+ * the timestamp.
+ *
+ * Queries are not serialized. The layers are read without holding any lock,
+ * and data read while a path was being invalidated is stored without being
+ * marked as validated, so that it is checked again on the next query.
+ */
+public class VFSIndex {
+
+	/**
+	 * Origin of a path that does not exist in any layer.
+	 */
+	public static final int ORIGIN_NONE = -2;
+	/**
+	 * Origin of a path found in the OvFS.
+	 */
+	public static final int ORIGIN_OVFS = -1;
+	/**
+	 * Origin of a path found in the BaseFS. Paths found in a patch layer have
+	 * the index of the layer plus one as their origin.
+	 */
+	public static final int ORIGIN_BASEFS = 0;
+
+	private static final int INDEX_MAGIC = 0x49534656; //VFSI
+	private static final int INDEX_VERSION = 2;
+
+	private static final long RACY_INTERVAL_MILLIS = 2000;
+
+	private static final int LAYER_MASK_BASEFS = 1;
+	private static final int LAYER_MASK_OVFS = 2;
+
+	private static final int ENTRY_FLAG_DIRECTORY = 1;
+	private static final int ENTRY_FLAG_ARC = 2;
+
+	private final VFS vfs;
+	private final FSFile location;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+
+	//Incremented by every invalidation, so that concurrently read data is not trusted
+	private final AtomicLong generation = new AtomicLong();
+
+	private volatile boolean modified = false;
+
+	/**
+	 * Creates an index of a VFS, loading a previously saved snapshot if one
+	 * exists at the location.
+	 *
+	 * @param vfs The VFS to index.
+	 * @param location FSFile location of the saved index, or null if the
+	 * index should not be persisted.
+	 */
+	public VFSIndex(VFS vfs, FSFile location) {
+		this.vfs = vfs;
+		this.location = location;
+		if (location != null && location.isFile()) {
+			try {
+				read();
+			} catch (IOException ex) {
+				Logger.getLogger(VFSIndex.class.getName()).log(Level.SEVERE, null, ex);
+				entries.clear();
+				listings.clear();
+			}
+		}
+	}
+
+	private void read() throws IOException {
+		DataInStream in = new DataInStream(location.getInputStream());
+		try {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				System.out.println("VFS index " + location + " is outdated. Rebuilding.");
+				return;
+			}
+			int listingCount = in.readInt();
+			for (int i = 0; i < listingCount; i++) {
+				String path = readPath(in);
+				long ovLastModified = in.readLong();
+				long baseLastModified = in.readLong();
+				long scanTime = in.readLong();
+				int childCount = in.readInt();
+				Map<String, Integer> children = new LinkedHashMap<>();
+				for (int j = 0; j < childCount; j++) {
+					String childPath = readPath(in);
+					children.put(childPath, (int) in.readByte());
+				}
+				listings.put(path, new Listing(ovLastModified, baseLastModified, scanTime, children));
+			}
+			int entryCount = in.readInt();
+			for (int i = 0; i < entryCount; i++) {
+				String path = readPath(in);
+				int origin = in.readByte();
+				int flags = in.readByte();
+				int length = in.readInt();
+				long lastModified = in.readLong();
+				long scanTime = in.readLong();
+				entries.put(path, new Entry(origin, (flags & ENTRY_FLAG_DIRECTORY) != 0, (flags & ENTRY_FLAG_ARC) != 0, length, lastModified, scanTime));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the index to its location, if it has been modified.
+	 */
+	public synchronized void write() {
+		if (!modified || location == null) {
+			return;
+		}
+		//Cleared first, so that changes made while writing are saved the next time
+		modified = false;
+		try {
+			DataOutStream out = new DataOutStream(location.getOutputStream());
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(listings.size());
+			for (Map.Entry<String, Listing> l : listings.entrySet()) {
+				Listing listing = l.getValue();
+				writePath(out, l.getKey());
+				out.writeLong(listing.ovLastModified);
+				out.writeLong(listing.baseLastModified);
+				out.writeLong(listing.scanTime);
+				out.writeInt(listing.children.size());
+				for (Map.Entry<String, Integer> child : listing.children.entrySet()) {
+					writePath(out, child.getKey());
+					out.writeByte(child.getValue());
+				}
+			}
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				writePath(out, e.getKey());
+				out.writeByte(entry.origin);
+				out.writeByte((entry.directory ? ENTRY_FLAG_DIRECTORY : 0) | (entry.arc ? ENTRY_FLAG_ARC : 0));
+				out.writeInt(entry.length);
+				out.writeLong(entry.lastModified);
+				out.writeLong(entry.scanTime);
+			}
+			out.close();
+		} catch (IOException ex) {
+			modified = true;
+			Logger.getLogger(VFSIndex.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	private static String readPath(DataInStream in) throws IOException {
+		byte[] bytes = new byte[in.readShort() & 0xFFFF];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writePath(DataOutStream out, String path) throws IOException {
+		byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String getKey(String path) {
+		path = FSUtil.cleanPathFromRootSlash(path);
+		if (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	private static String getParentKey(String key) {
+		int end = key.lastIndexOf('/');
+		return end == -1 ? "" : key.substring(0, end);
+	}
+
+	private String getChildKey(String dirKey, String name) {
+		return vfs.getFS().getWildCardManager().getWildCardedPath(dirKey.isEmpty() ? name : dirKey + "/" + name);
+	}
+
+	private static boolean isUpToDate(long lastModified, long indexedLastModified, long scanTime) {
+		return lastModified == indexedLastModified && lastModified < scanTime - RACY_INTERVAL_MILLIS;
+	}
+
+	private Listing getListing(String dirKey) {
+		Listing l = listings.get(dirKey);
+		if (l != null && l.validated && vfs.isWatchingExternalChanges()) {
+			return l;
+		}
+		if (!dirKey.isEmpty()) {
+			Entry dirEntry = getEntry(dirKey);
+			if (dirEntry == null || !dirEntry.directory) {
+				return null;
+			}
+		}
+		FSFile ovDir = vfs.getLayerFile(ORIGIN_OVFS, dirKey);
+		FSFile baseDir = vfs.getLayerFile(ORIGIN_BASEFS, dirKey);
+		long ovLastModified = ovDir == null ? 0 : ovDir.lastModified();
+		long baseLastModified = baseDir == null ? 0 : baseDir.lastModified();
+
+		if (l != null && !l.stale && (ovLastModified != 0 || baseLastModified != 0)
+			&& isUpToDate(ovLastModified, l.ovLastModified, l.scanTime) && isUpToDate(baseLastModified, l.baseLastModified, l.scanTime)) {
+			l.validated = true;
+			return l;
+		}
+
+		long gen = generation.get();
+		long scanTime = System.currentTimeMillis();
+		Map<String, Integer> children = new LinkedHashMap<>();
+		if (baseDir != null) {
+			for (FSFile child : baseDir.listFiles()) {
+				children.merge(getChildKey(dirKey, child.getName()), LAYER_MASK_BASEFS, (a, b) -> a | b);
+			}
+		}
+		if (ovDir != null) {
+			for (FSFile child : ovDir.listFiles()) {
+				children.merge(getChildKey(dirKey, child.getName()), LAYER_MASK_OVFS, (a, b) -> a | b);
+			}
+		}
+
+		if (l != null) {
+			for (String oldChild : l.children.keySet()) {
+				if (!children.containsKey(oldChild)) {
+					removeSubtree(oldChild);
+				}
+			}
+		}
+		for (String child : children.keySet()) {
+			Entry e = entries.get(child);
+			if (e != null) {
+				e.validated = false;
+			}
+		}
+
+		l = new Listing(ovLastModified, baseLastModified, scanTime, children);
+		l.validated = gen == generation.get();
+		listings.put(dirKey, l);
+		modified = true;
+		return l;
+	}
+
+	private void removeSubtree(String key) {
+		String prefix = key + "/";
+		entries.remove(key);
+		listings.remove(key);
+		entries.keySet().removeIf((k) -> k.startsWith(prefix));
+		listings.keySet().removeIf((k) -> k.startsWith(prefix));
+	}
+
+	private Entry getEntry(String key) {
+		Listing parent = getListing(getParentKey(key));
+		if (parent == null) {
+			return null;
+		}
+		Integer layerMask = parent.children.get(key);
+		boolean inOvFS = layerMask != null && (layerMask & LAYER_MASK_OVFS) != 0;
+		boolean inBaseFS = layerMask != null && (layerMask & LAYER_MASK_BASEFS) != 0;
+		int origin;
+		if (inOvFS) {
+			origin = ORIGIN_OVFS;
+		} else {
+			origin = vfs.getLowerLayerOrigin(key);
+			if (origin == ORIGIN_BASEFS && !inBaseFS) {
+				return null;
+			}
+		}
+
+		Entry e = entries.get(key);
+		if (e != null && !(e.validated && vfs.isWatchingExternalChanges())) {
+			e.validated = false;
+			if (e.origin == origin) {
+				FSFile f = vfs.getLayerFile(origin, key);
+				long lastModified = f == null ? 0 : f.lastModified();
+				if (lastModified != 0 && isUpToDate(lastModified, e.lastModified, e.scanTime)) {
+					e.validated = true;
+				}
+			}
+			if (!e.validated) {
+				e = null;
+			}
+		}
+		if (e == null) {
+			long gen = generation.get();
+			e = createEntry(key, origin, inBaseFS);
+			e.validated = gen == generation.get();
+			entries.put(key, e);
+			modified = true;
+		}
+		return e;
+	}
+
+	private Entry createEntry(String key, int origin, boolean inBaseFS) {
+		long scanTime = System.currentTimeMillis();
+		FSFile f = vfs.getLayerFile(origin, key);
+		boolean directory = f.isDirectory();
+		boolean arc = false;
+		if (inBaseFS) {
+			ArcFileAccessor afa = vfs.getFS().getArcFileAccessor();
+			if (afa != null) {
+				//Only BaseFS archives are expanded by the VFS, also when they are partly extracted to an OvFS directory
+				FSFile baseFile = origin == ORIGIN_BASEFS ? f : vfs.getLayerFile(ORIGIN_BASEFS, key);
+				arc = baseFile != null && !baseFile.isDirectory() && afa.isArcFile(baseFile);
+			}
+		}
+		return new Entry(origin, directory, arc, directory ? 0 : f.length(), f.lastModified(), scanTime);
+	}
+
+	/**
+	 * Gets the layer that a path is read from.
+	 *
+	 * @param path Wildcarded VFS path.
+	 * @return ORIGIN_OVFS, ORIGIN_BASEFS, the index of a patch layer plus one,
+	 * or ORIGIN_NONE if the path does not exist.
+	 */
+	public int getOrigin(String path) {
+		String key = getKey(path);
+		if (key.isEmpty()) {
+			return ORIGIN_OVFS;
+		}
+		Entry e = getEntry(key);
+		return e == null ? ORIGIN_NONE : e.origin;
+	}
+
+	/**
+	 * Checks if a path exists in any layer.
+	 *
+	 * @param path Wildcarded VFS path.
+	 * @return
+	 */
+	public boolean exists(String path) {
+		return getOrigin(path) != ORIGIN_NONE;
+	}
+
+	/**
+	 * Checks if a path is a directory.
+	 *
+	 * @param path Wildcarded VFS path.
+	 * @return
+	 */
+	public boolean isDirectory(String path) {
+		String key = getKey(path);
+		if (key.isEmpty()) {
+			return true;
+		}
+		Entry e = getEntry(key);
+		return e != null && e.directory;
+	}
+
+	/**
+	 * Checks if a path is an archive in the BaseFS that the VFS would expand.
+	 *
+	 * @param path Wildcarded VFS path.
+	 * @return
+	 */
+	public boolean isArcFile(String path) {
+		String key = getKey(path);
+		if (key.isEmpty()) {
+			return false;
+		}
+		Entry e = getEntry(key);
+		return e != null && e.arc;
+	}
+
+	/**
+	 * Gets the length of a file in the layer it is read from.
+	 *
+	 * @param path Wildcarded VFS path.
+	 * @return The length of the file, or 0 if it is not a file.
+	 */
+	public int length(String path) {
+		String key = getKey(path);
+		if (key.isEmpty()) {
+			return 0;
+		}
+		Entry e = getEntry(key);
+		return e == null ? 0 : e.length;
+	}
+
+	/**
+	 * Gets the paths of the children of a directory across all layers.
+	 *
+	 * @param path Wildcarded VFS path of the directory.
+	 * @return A list of wildcarded paths, or null if the path is not a
+	 * directory.
+	 */
+	public List<String> getChildPaths(String path) {
+		String key = getKey(path);
+		Listing l = getListing(key);
+		if (l == null) {
+			return null;
+		}
+		List<String> result = new ArrayList<>(l.children.keySet());
+		for (String layerChild : vfs.getLayerChildNames(key)) {
+			String childKey = getChildKey(key, layerChild);
+			if (!l.children.containsKey(childKey)) {
+				result.add(childKey);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Discards the indexed data of a path and the listing of its parent
+	 * directory. Used when a file is changed through the VFS, since the change
+	 * may have happened within the resolution of the modification time.
+	 *
+	 * @param path Wildcarded VFS path.
+	 */
+	public void invalidate(String path) {
+		String key = getKey(path);
+		generation.incrementAndGet();
+		if (entries.remove(key) != null) {
+			modified = true;
+		}
+		Listing l = listings.get(key);
+		if (l != null) {
+			l.validated = false;
+			l.stale = true;
+		}
+		if (!key.isEmpty()) {
+			Listing parent = listings.get(getParentKey(key));
+			if (parent != null) {
+				parent.validated = false;
+				parent.stale = true;
+			}
+		}
+	}
+
+	/**
+	 * Marks all paths for revalidation.
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		for (Entry e : entries.values()) {
+			e.validated = false;
+		}
+		for (Listing l : listings.values()) {
+			l.validated = false;
+		}
+	}
+
+	/**
+	 * Discards all indexed data.
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		entries.clear();
+		listings.clear();
+		modified = true;
+	}
+
+	private static class Entry {
+
+		public final int origin;
+		public final boolean directory;
+		public final boolean arc;
+		public final int length;
+		public final long lastModified;
+		public final long scanTime;
+
+		public volatile boolean validated = false;
+
+		public Entry(int origin, boolean directory, boolean arc, int length, long lastModified, long scanTime) {
+			this.origin = origin;
+			this.directory = directory;
+			this.arc = arc;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.scanTime = scanTime;
+		}
+	}
+
+	private static class Listing {
+
+		public final long ovLastModified;
+		public final long baseLastModified;
+		public final long scanTime;
+		public final Map<String, Integer> children;
+
+		public volatile boolean validated = false;
+		public volatile boolean stale = false;
+
+		public Listing(long ovLastModified, long baseLastModified, long scanTime, Map<String, Integer> children) {
+			this.ovLastModified = ovLastModified;
+			this.baseLastModified = baseLastModified;
+			this.scanTime = scanTime;
+			this.children = children;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package ctrmap.stdlib.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of all file paths in a read-only VFS layer. The index is
+ * built once, so that lookups in the layer do not have to probe its file
+ * system.
+ */
+public class VFSLayerIndex {
+
+	private final FSFile root;
+
+	private final Map<String, Boolean> entries = new HashMap<>();
+	private final Map<String, List<String>> children = new HashMap<>();
+
+	/**
+	 * Builds the index of a layer.
+	 *
+	 * @param root Root directory of the layer.
+	 * @param wcm Wild card manager to convert the indexed paths with.
+	 */
+	public VFSLayerIndex(FSFile root, FSWildCardManager wcm) {
+		this.root = root;
+		indexDirectory(root, "", wcm);
+	}
+
+	private void indexDirectory(FSFile dir, String dirPath, FSWildCardManager wcm) {
+		List<String> names = new ArrayList<>();
+		for (FSFile child : dir.listFiles()) {
+			String name = child.getName();
+			String childPath = wcm.getWildCardedPath(dirPath.isEmpty() ? name : dirPath + "/" + name);
+			boolean isDir = child.isDirectory();
+			names.add(name);
+			entries.put(childPath, isDir);
+			if (isDir) {
+				indexDirectory(child, childPath, wcm);
+			}
+		}
+		children.put(dirPath, Collections.unmodifiableList(names));
+	}
+
+	/**
+	 * Gets the root directory of the indexed layer.
+	 *
+	 * @return
+	 */
+	public FSFile getRoot() {
+		return root;
+	}
+
+	/**
+	 * Checks if the layer contains a file or directory.
+	 *
+	 * @param path Wildcarded path relative to the layer root.
+	 * @return
+	 */
+	public boolean contains(String path) {
+		return path.isEmpty() || entries.containsKey(path);
+	}
+
+	/**
+	 * Checks if a path in the layer is a directory.
+	 *
+	 * @param path Wildcarded path relative to the layer root.
+	 * @return True if the path exists in the layer and is a directory.
+	 */
+	public boolean isDirectory(String path) {
+		return path.isEmpty() || Boolean.TRUE.equals(entries.get(path));
+	}
+
+	/**
+	 * Gets the names of the children of a directory in the layer.
+	 *
+	 * @param path Wildcarded path of the directory relative to the layer root.
+	 * @return A list of file names, empty if the directory is not in the layer.
+	 */
+	public List<String> getChildNames(String path) {
+		List<String> l = children.get(path);
+		return l != null ? l : Collections.emptyList();
+	}
+
+	/**
+	 * Gets the number of files and directories in the layer.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
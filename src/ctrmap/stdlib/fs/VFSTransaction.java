@@ -0,0 +1,305 @@
+package ctrmap.stdlib.fs;
+
+import ctrmap.stdlib.crypto.ContentHash;
+import ctrmap.stdlib.fs.accessors.MemoryFile;
+import ctrmap.stdlib.thread.StripedReadWriteLock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A set of VFS changes that are applied together.
+ *
+ * Writes, deletes and renames are only staged until commit is called. The
+ * commit first writes all new data to temporary files next to their targets,
+ * then moves them over the targets using atomic renames where possible, so
+ * that a failed commit never leaves a partially written file in the OvFS. The
+ * blacklist is written once per commit, and change listeners are notified
+ * once per changed path after all changes have been applied.
+ *
+ * Atomicity is only guaranteed per file. If staging the new data fails,
+ * nothing is applied, but if moving a staged file into place fails, the
+ * changes before it remain applied and the commit continues with the rest,
+ * so a commit of multiple files can end up partly applied.
+ */
+public class VFSTransaction {
+
+	/**
+	 * Suffix of the temporary files created in the OvFS during a commit.
+	 */
+	public static final String TEMP_FILE_SUFFIX = ".vfstx";
+
+	private final VFS vfs;
+
+	private final List<Operation> operations = new ArrayList<>();
+
+	private boolean closed = false;
+
+	VFSTransaction(VFS vfs) {
+		this.vfs = vfs;
+	}
+
+	private String getKey(String path) {
+		return vfs.getFS().getWildCardManager().getWildCardedPath(FSUtil.cleanPathFromRootSlash(path));
+	}
+
+	private void ensureOpen() {
+		if (closed) {
+			throw new IllegalStateException("The transaction has already been committed or discarded.");
+		}
+	}
+
+	/**
+	 * Stages writing data to a file.
+	 *
+	 * @param path Wildcarded VFS path of the file.
+	 * @param data The new contents of the file.
+	 */
+	public synchronized void write(String path, byte[] data) {
+		write(path, new MemoryFile(FSUtil.getFileName(path), data));
+	}
+
+	/**
+	 * Stages writing the contents of another file to a file. The source is
+	 * read when the transaction is committed.
+	 *
+	 * @param path Wildcarded VFS path of the file.
+	 * @param source The file to copy the contents from.
+	 */
+	public synchronized void write(String path, FSFile source) {
+		ensureOpen();
+		operations.add(new Operation(OperationType.WRITE, getKey(path), null, source));
+	}
+
+	/**
+	 * Stages deleting a file from the OvFS.
+	 *
+	 * @param path Wildcarded VFS path of the file.
+	 */
+	public synchronized void delete(String path) {
+		ensureOpen();
+		operations.add(new Operation(OperationType.DELETE, getKey(path), null, null));
+	}
+
+	/**
+	 * Stages renaming a file.
+	 *
+	 * @param path Wildcarded VFS path of the file.
+	 * @param newPath Wildcarded VFS path after renaming.
+	 */
+	public synchronized void rename(String path, String newPath) {
+		ensureOpen();
+		operations.add(new Operation(OperationType.RENAME, getKey(path), getKey(newPath), null));
+	}
+
+	/**
+	 * Gets the number of staged changes.
+	 *
+	 * @return
+	 */
+	public synchronized int getOperationCount() {
+		return operations.size();
+	}
+
+	/**
+	 * Discards all staged changes.
+	 */
+	public synchronized void discard() {
+		operations.clear();
+		closed = true;
+	}
+
+	/**
+	 * Applies all staged changes.
+	 *
+	 * @return True if all changes were applied. If writing the new data fails,
+	 * no changes are applied. If false is returned otherwise, some of the
+	 * changes may have been applied.
+	 */
+	public synchronized boolean commit() {
+		ensureOpen();
+		closed = true;
+
+		List<String> lockedPaths = new ArrayList<>();
+		for (Operation op : operations) {
+			lockedPaths.add(op.path);
+			if (op.newPath != null) {
+				lockedPaths.add(op.newPath);
+			}
+		}
+
+		Map<String, VFSChangeListener.ChangeType> changes = new LinkedHashMap<>();
+		boolean success = true;
+
+		Lock[] locks = vfs.getPathLocks().lockAllForWrite(lockedPaths.toArray());
+		try {
+			//Stage all new data first, so that nothing is changed if it can not be written
+			List<FSFile> tempFiles = new ArrayList<>();
+			boolean staged = false;
+			try {
+				for (int i = 0; i < operations.size(); i++) {
+					Operation op = operations.get(i);
+					if (op.type == OperationType.WRITE) {
+						FSFile ovFile = vfs.getLayerFile(VFSIndex.ORIGIN_OVFS, op.path);
+						FSFile parent = ovFile.getParent();
+						if (!parent.exists()) {
+							parent.mkdirs();
+						}
+						FSFile temp = parent.getChild(ovFile.getName() + "." + i + TEMP_FILE_SUFFIX);
+						tempFiles.add(temp);
+						FSUtil.copy(op.source, temp);
+						if (!temp.isFile() || temp.length() != op.source.length()) {
+							System.out.println("Failed to stage VFS write to " + op.path + ", rolling back transaction.");
+							return false;
+						}
+						op.tempFile = temp;
+					}
+				}
+				staged = true;
+			} finally {
+				//Also roll back if staging threw, so that no temporary files are left in the OvFS
+				if (!staged) {
+					for (FSFile t : tempFiles) {
+						if (t.exists()) {
+							t.delete();
+						}
+					}
+				}
+			}
+
+			vfs.beginBlacklistBatch();
+			try {
+				for (Operation op : operations) {
+					switch (op.type) {
+						case WRITE:
+							success &= applyWrite(op, changes);
+							break;
+						case DELETE:
+							applyDelete(op, changes);
+							break;
+						case RENAME:
+							applyRename(op, changes);
+							break;
+					}
+				}
+			} finally {
+				vfs.endBlacklistBatch();
+			}
+		} finally {
+			StripedReadWriteLock.unlockAll(locks);
+		}
+
+		for (Map.Entry<String, VFSChangeListener.ChangeType> change : changes.entrySet()) {
+			vfs.fireFileChanged(change.getKey(), change.getValue());
+		}
+		return success;
+	}
+
+	private boolean applyWrite(Operation op, Map<String, VFSChangeListener.ChangeType> changes) {
+		FSFile ovFile = vfs.getLayerFile(VFSIndex.ORIGIN_OVFS, op.path);
+		FSFile baseFile = vfs.getLowerLayerFile(op.path);
+		boolean isNewOvFile = !ovFile.exists();
+		boolean existed = !isNewOvFile || (baseFile != null && baseFile.exists());
+
+		vfs.beginOwnWrite(op.path, true);
+		boolean moved;
+		try {
+			moved = FSUtil.moveAtomic(op.tempFile, ovFile);
+		} finally {
+			vfs.endOwnWrite(op.path, true, ovFile);
+		}
+		if (!moved) {
+			op.tempFile.delete();
+			return false;
+		}
+
+		//Same rules as MonitoredFSOutputStream: new OvFS files are blacklisted until their contents differ from the BaseFS
+		boolean unchanged = false;
+		if (baseFile != null && baseFile.isFile() && baseFile.length() == ovFile.length()) {
+			unchanged = Objects.equals(ContentHash.hash(ovFile), vfs.getBaseFileHash(op.path, baseFile));
+		}
+		if (!unchanged) {
+			vfs.notifyFileChange(op.path);
+		} else {
+			if (isNewOvFile) {
+				vfs.notifyOvFsNewFileInit(op.path);
+			} else {
+				vfs.invalidateIndex(op.path);
+			}
+			vfs.notifyOvFsFileUnchanged(op.path, ovFile);
+		}
+		putChange(changes, op.path, existed ? VFSChangeListener.ChangeType.MODIFY : VFSChangeListener.ChangeType.CREATE);
+		return true;
+	}
+
+	private void applyDelete(Operation op, Map<String, VFSChangeListener.ChangeType> changes) {
+		FSFile ovFile = vfs.getLayerFile(VFSIndex.ORIGIN_OVFS, op.path);
+		if (ovFile.exists()) {
+			vfs.beginOwnWrite(op.path, true);
+			try {
+				ovFile.delete();
+			} finally {
+				vfs.endOwnWrite(op.path, true, ovFile);
+			}
+			vfs.notifyFileChange(op.path);
+			putChange(changes, op.path, VFSChangeListener.ChangeType.DELETE);
+		}
+	}
+
+	private void applyRename(Operation op, Map<String, VFSChangeListener.ChangeType> changes) {
+		//Always a VFSFile, so that the blacklist entry, index and manifest follow the file. The path locks are already held.
+		new VFSFile(op.path, vfs).renameLocked(op.newPath);
+		putChange(changes, op.path, VFSChangeListener.ChangeType.DELETE);
+		putChange(changes, op.newPath, VFSChangeListener.ChangeType.CREATE);
+	}
+
+	private static void putChange(Map<String, VFSChangeListener.ChangeType> changes, String path, VFSChangeListener.ChangeType type) {
+		VFSChangeListener.ChangeType previous = changes.get(path);
+		if (previous == null) {
+			changes.put(path, type);
+			return;
+		}
+		switch (previous) {
+			case CREATE:
+				if (type == VFSChangeListener.ChangeType.DELETE) {
+					//Never visible to the listeners
+					changes.remove(path);
+				}
+				break;
+			case DELETE:
+				changes.put(path, type == VFSChangeListener.ChangeType.DELETE ? type : VFSChangeListener.ChangeType.MODIFY);
+				break;
+			case MODIFY:
+				if (type == VFSChangeListener.ChangeType.DELETE) {
+					changes.put(path, type);
+				}
+				break;
+		}
+	}
+
+	private static enum OperationType {
+		WRITE,
+		DELETE,
+		RENAME
+	}
+
+	private static class Operation {
+
+		public final OperationType type;
+		public final String path;
+		public final String newPath;
+		public final FSFile source;
+
+		public FSFile tempFile;
+
+		public Operation(OperationType type, String path, String newPath, FSFile source) {
+			this.type = type;
+			this.path = path;
+			this.newPath = newPath;
+			this.source = source;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package ctrmap.stdlib.fs;
+
+import ctrmap.stdlib.fs.accessors.DiskFile;
+import ctrmap.stdlib.fs.accessors.DiskFileStatCache;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the disk directories of a VFS's BaseFS and OvFS for changes made by
+ * external programs and forwards them to the VFS.
+ */
+public class VFSWatcher implements Closeable {
+
+	private final VFS vfs;
+
+	private final WatchService watchService;
+	private final Map<WatchKey, WatchedDir> watchedDirs = new ConcurrentHashMap<>();
+
+	private final Path baseRoot;
+	private final Path ovRoot;
+
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a watcher for the layers of a VFS. Only layers backed by a
+	 * DiskFile are watched.
+	 *
+	 * @param vfs The VFS to watch.
+	 * @throws IOException If the file system does not support watching.
+	 */
+	public VFSWatcher(VFS vfs) throws IOException {
+		this.vfs = vfs;
+		watchService = FileSystems.getDefault().newWatchService();
+		baseRoot = getDiskRoot(vfs.getBaseFSRoot());
+		ovRoot = getDiskRoot(vfs.getOvFSRoot());
+		if (baseRoot != null) {
+			registerTree(baseRoot, baseRoot, false);
+		}
+		if (ovRoot != null) {
+			registerTree(ovRoot, ovRoot, true);
+		}
+	}
+
+	/**
+	 * Checks if at least one of the layers of a VFS can be watched.
+	 *
+	 * @param vfs A VFS.
+	 * @return
+	 */
+	public static boolean isWatchable(VFS vfs) {
+		return getDiskRoot(vfs.getBaseFSRoot()) != null || getDiskRoot(vfs.getOvFSRoot()) != null;
+	}
+
+	private static Path getDiskRoot(FSFile layerRoot) {
+		while (layerRoot instanceof VFSRootFile) {
+			layerRoot = ((VFSRootFile) layerRoot).getSource();
+		}
+		if (layerRoot instanceof DiskFile) {
+			return ((DiskFile) layerRoot).getFile().toPath().toAbsolutePath();
+		}
+		return null;
+	}
+
+	private void registerTree(Path root, Path dir, boolean overlay) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				watchedDirs.put(key, new WatchedDir(d, root, overlay));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Starts watching on a background daemon thread.
+	 */
+	public void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this::run, "VFSWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		while (running) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException ex) {
+				break;
+			}
+			WatchedDir dir = watchedDirs.get(key);
+			if (dir != null) {
+				for (WatchEvent<?> event : key.pollEvents()) {
+					try {
+						handleEvent(dir, event);
+					} catch (RuntimeException ex) {
+						Logger.getLogger(VFSWatcher.class.getName()).log(Level.SEVERE, null, ex);
+					}
+				}
+			}
+			if (!key.reset()) {
+				watchedDirs.remove(key);
+			}
+		}
+	}
+
+	private void handleEvent(WatchedDir dir, WatchEvent<?> event) {
+		WatchEvent.Kind<?> kind = event.kind();
+		if (kind == StandardWatchEventKinds.OVERFLOW) {
+			//Events have been lost, nothing can be assumed about the cached state
+			vfs.handleExternalChange(null, dir.overlay, VFSChangeListener.ChangeType.MODIFY);
+			return;
+		}
+		Path changed = dir.dir.resolve((Path) event.context());
+		File changedFile = changed.toFile();
+		DiskFileStatCache.invalidateCurrent(changedFile);
+
+		VFSChangeListener.ChangeType type;
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+			type = VFSChangeListener.ChangeType.CREATE;
+			if (Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					registerTree(dir.root, changed, dir.overlay);
+				} catch (IOException ex) {
+					Logger.getLogger(VFSWatcher.class.getName()).log(Level.WARNING, null, ex);
+				}
+			}
+		} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			type = VFSChangeListener.ChangeType.DELETE;
+		} else {
+			type = VFSChangeListener.ChangeType.MODIFY;
+		}
+
+		String relPath = dir.root.relativize(changed).toString().replace(File.separatorChar, '/');
+		vfs.handleExternalChange(relPath, dir.overlay, type);
+	}
+
+	/**
+	 * Checks if changes to both the BaseFS and the OvFS are being reported.
+	 *
+	 * @return
+	 */
+	public boolean isWatchingAllLayers() {
+		return running && baseRoot != null && ovRoot != null;
+	}
+
+	/**
+	 * Stops watching and releases the watch service.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		try {
+			watchService.close();
+		} catch (IOException ex) {
+			Logger.getLogger(VFSWatcher.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	private static class WatchedDir {
+
+		public final Path dir;
+		public final Path root;
+		public final boolean overlay;
+
+		public WatchedDir(Path dir, Path root, boolean overlay) {
+			this.dir = dir;
+			this.root = root;
+			this.overlay = overlay;
+		}
+	}
+}
@@ -0,0 +1,685 @@
+package ctrmap.stdlib.fs.accessors;
+
+import ctrmap.stdlib.crypto.ContentHash;
+import ctrmap.stdlib.fs.FSFile;
+import ctrmap.stdlib.fs.FSUtil;
+import ctrmap.stdlib.io.base.impl.ext.data.DataIOStream;
+import ctrmap.stdlib.io.base.impl.ext.data.DataInStream;
+import ctrmap.stdlib.io.base.impl.ext.data.DataOutStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed file store.
+ *
+ * File contents are stored once per unique content as blobs named by their
+ * hash, and a path index maps file paths to the blobs. Identical files share
+ * a single blob, and copying files within the store only copies the index
+ * entries. The files of the store are accessed through BlobStoreFile.
+ *
+ * The index is kept in memory and saved on flush and on shutdown. Changes
+ * made in between are appended to a journal as they happen, which is replayed
+ * when the store is opened, so that they survive a crash. Blobs that are no
+ * longer referenced are removed by collectGarbage.
+ */
+public class BlobStore {
+
+	private static final int INDEX_MAGIC = 0x53424C42; //BLBS
+	private static final int INDEX_VERSION = 2;
+
+	private static final int JOURNAL_LINK = 0;
+	private static final int JOURNAL_DELETE = 1;
+	private static final int JOURNAL_MKDIR = 2;
+	private static final int JOURNAL_COPY = 3;
+	private static final int JOURNAL_MOVE = 4;
+
+	//The index is saved and the journal restarted once the journal grows past this size
+	private static final int JOURNAL_COMPACT_BYTES = 1 << 20;
+
+	private final FSFile root;
+	private final FSFile blobDir;
+	private final FSFile tempDir;
+	private final FSFile indexFile;
+	private final FSFile journalFile;
+
+	private final Map<String, String> files = new HashMap<>();
+	private final Set<String> dirs = new LinkedHashSet<>();
+	//Paths of the files and directories in each directory
+	private final Map<String, Set<String>> children = new HashMap<>();
+
+	private final AtomicLong tempCounter = new AtomicLong();
+
+	//Held for reading while blobs are stored and linked, and for writing by collectGarbage
+	private final ReadWriteLock blobLock = new ReentrantReadWriteLock();
+
+	private boolean modified = false;
+	//Identifies the index that the journal applies to, since the journal may outlive a flush in a crash
+	private long journalId = 0;
+	private int journalLength = 0;
+
+	/**
+	 * Opens or creates a blob store in a directory.
+	 *
+	 * @param root The storage directory.
+	 */
+	public BlobStore(FSFile root) {
+		this.root = root;
+		blobDir = root.getChild("blobs");
+		tempDir = root.getChild("tmp");
+		indexFile = root.getChild("index.bin");
+		journalFile = root.getChild("journal.bin");
+		blobDir.mkdirs();
+		tempDir.mkdirs();
+		dirs.add("");
+		readIndex();
+		replayJournal();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private void readIndex() {
+		if (!indexFile.isFile()) {
+			return;
+		}
+		try {
+			DataInStream in = new DataInStream(indexFile.getInputStream());
+			try {
+				if (in.readInt() != INDEX_MAGIC) {
+					System.out.println("Unsupported blob store index at " + indexFile);
+					return;
+				}
+				int version = in.readInt();
+				if (version == INDEX_VERSION) {
+					journalId = in.readLong();
+				} else if (version != 1) {
+					System.out.println("Unsupported blob store index at " + indexFile);
+					return;
+				}
+				int dirCount = in.readInt();
+				for (int i = 0; i < dirCount; i++) {
+					addDir(readPath(in));
+				}
+				int fileCount = in.readInt();
+				for (int i = 0; i < fileCount; i++) {
+					String path = readPath(in);
+					putIndexFile(path, in.readString());
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(BlobStore.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	private void replayJournal() {
+		if (!journalFile.isFile()) {
+			return;
+		}
+		try {
+			DataInStream in = new DataInStream(journalFile.getInputStream());
+			try {
+				int len = in.getLength();
+				if (len < Long.BYTES || in.readLong() != journalId) {
+					//Already contained in the index
+					len = 0;
+				}
+				while (in.getPosition() + Integer.BYTES <= len) {
+					int recordLength = in.readInt();
+					if (in.getPosition() + recordLength > len) {
+						//Cut off by a crash while it was being written
+						break;
+					}
+					int op = in.read();
+					String path = readPath(in);
+					switch (op) {
+						case JOURNAL_LINK:
+							linkImpl(path, in.readString());
+							break;
+						case JOURNAL_DELETE:
+							deleteImpl(path);
+							break;
+						case JOURNAL_MKDIR:
+							mkdirImpl(path);
+							break;
+						case JOURNAL_COPY:
+						case JOURNAL_MOVE:
+							transfer(path, readPath(in), op == JOURNAL_MOVE);
+							break;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(BlobStore.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		//Saving the index right away starts a new journal, instead of appending to a possibly cut off or outdated one
+		modified = true;
+		flush();
+	}
+
+	private void journal(int op, String path, String arg) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutStream rout = new DataOutStream(record);
+			rout.write(op);
+			writePath(rout, path);
+			if (op == JOURNAL_LINK) {
+				rout.writeString(arg);
+			} else if (arg != null) {
+				writePath(rout, arg);
+			}
+			rout.close();
+
+			DataIOStream io = journalFile.getDataIOStream();
+			try {
+				if (io.getLength() < Long.BYTES) {
+					io.seek(0);
+					io.writeLong(journalId);
+				} else {
+					io.seek(io.getLength());
+				}
+				io.writeInt(record.size());
+				io.write(record.toByteArray());
+				journalLength = io.getLength();
+			} finally {
+				io.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(BlobStore.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		if (journalLength > JOURNAL_COMPACT_BYTES) {
+			flush();
+		}
+	}
+
+	/**
+	 * Saves the path index, if it has been modified, and clears the journal.
+	 */
+	public synchronized void flush() {
+		if (!modified) {
+			return;
+		}
+		try {
+			FSFile temp = createTempFile();
+			DataOutStream out = new DataOutStream(temp.getOutputStream());
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(journalId + 1);
+			out.writeInt(dirs.size());
+			for (String dir : dirs) {
+				writePath(out, dir);
+			}
+			out.writeInt(files.size());
+			for (Map.Entry<String, String> e : files.entrySet()) {
+				writePath(out, e.getKey());
+				out.writeString(e.getValue());
+			}
+			out.close();
+			if (FSUtil.moveAtomic(temp, indexFile)) {
+				modified = false;
+				journalId++;
+				journalFile.delete();
+				journalLength = 0;
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(BlobStore.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	private static String readPath(DataInStream in) throws IOException {
+		byte[] bytes = new byte[in.readShort() & 0xFFFF];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writePath(DataOutStream out, String path) throws IOException {
+		byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	static String normalizePath(String path) {
+		path = FSUtil.cleanPathFromRootSlash(path.replace('\\', '/'));
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	private static String getParentPath(String path) {
+		int end = path.lastIndexOf('/');
+		return end == -1 ? "" : path.substring(0, end);
+	}
+
+	/**
+	 * Gets the storage directory of the store.
+	 *
+	 * @return
+	 */
+	public FSFile getStorageRoot() {
+		return root;
+	}
+
+	/**
+	 * Gets the root directory of the stored files.
+	 *
+	 * @return
+	 */
+	public BlobStoreFile getRoot() {
+		return new BlobStoreFile(this, "");
+	}
+
+	/**
+	 * Gets a stored file.
+	 *
+	 * @param path Path of the file relative to the store root.
+	 * @return
+	 */
+	public BlobStoreFile getFile(String path) {
+		return new BlobStoreFile(this, normalizePath(path));
+	}
+
+	/**
+	 * Gets the blob of a content hash.
+	 *
+	 * @param hash The content hash.
+	 * @return The blob file. It does not necessarily exist.
+	 */
+	public FSFile getBlob(String hash) {
+		return blobDir.getChild(hash.substring(0, 2)).getChild(hash);
+	}
+
+	FSFile createTempFile() {
+		return tempDir.getChild(System.nanoTime() + "_" + tempCounter.incrementAndGet() + ".tmp");
+	}
+
+	private void commitTempBlob(FSFile temp, String hash) {
+		FSFile blob = getBlob(hash);
+		if (blob.exists()) {
+			temp.delete();
+		} else {
+			blob.getParent().mkdirs();
+			FSUtil.moveAtomic(temp, blob);
+		}
+	}
+
+	/**
+	 * Stores a temporary file as the blob of its hash and points a path to it.
+	 * If the blob already exists, the temporary file is discarded.
+	 *
+	 * @param temp A temporary file created by the store.
+	 * @param hash Content hash of the file.
+	 * @param path Path of the file.
+	 */
+	void commitTempFile(FSFile temp, String hash, String path) {
+		blobLock.readLock().lock();
+		try {
+			commitTempBlob(temp, hash);
+			link(path, hash);
+		} finally {
+			blobLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stores data as a blob. Unless a file is linked to it, the blob is
+	 * deleted by the next garbage collection. Use putFile to store and link
+	 * data without a garbage collection in between.
+	 *
+	 * @param data The data.
+	 * @return Content hash of the data.
+	 */
+	public String putBlob(byte[] data) {
+		blobLock.readLock().lock();
+		try {
+			return putBlobImpl(data);
+		} finally {
+			blobLock.readLock().unlock();
+		}
+	}
+
+	private String putBlobImpl(byte[] data) {
+		String hash = ContentHash.hash(data);
+		if (!getBlob(hash).exists()) {
+			FSFile temp = createTempFile();
+			temp.setBytes(data);
+			commitTempBlob(temp, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Stores the contents of a file as a blob. The data is only copied if no
+	 * blob with the same contents exists yet. Unless a file is linked to it,
+	 * the blob is deleted by the next garbage collection.
+	 *
+	 * @param source The file to store.
+	 * @return Content hash of the file, or null if it is not a readable file.
+	 */
+	public String putBlob(FSFile source) {
+		blobLock.readLock().lock();
+		try {
+			return putBlobImpl(source);
+		} finally {
+			blobLock.readLock().unlock();
+		}
+	}
+
+	private String putBlobImpl(FSFile source) {
+		String hash = ContentHash.hash(source);
+		if (hash != null && !getBlob(hash).exists()) {
+			FSFile temp = createTempFile();
+			FSUtil.copyFileStreamed(source, temp);
+			commitTempBlob(temp, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Stores data as a blob and points a path to it.
+	 *
+	 * @param path Path of the file.
+	 * @param data The data.
+	 */
+	public void putFile(String path, byte[] data) {
+		blobLock.readLock().lock();
+		try {
+			link(path, putBlobImpl(data));
+		} finally {
+			blobLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stores the contents of a file as a blob and points a path to it.
+	 *
+	 * @param path Path of the file.
+	 * @param source The file to store.
+	 * @return False if the source is not a readable file.
+	 */
+	public boolean putFile(String path, FSFile source) {
+		blobLock.readLock().lock();
+		try {
+			String hash = putBlobImpl(source);
+			if (hash == null) {
+				return false;
+			}
+			link(path, hash);
+			return true;
+		} finally {
+			blobLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the content hash of a stored file.
+	 *
+	 * @param path Path of the file.
+	 * @return The hash, or null if the path is not a file.
+	 */
+	public synchronized String getHash(String path) {
+		return files.get(normalizePath(path));
+	}
+
+	/**
+	 * Points a path to a blob, creating or replacing a file.
+	 *
+	 * @param path Path of the file.
+	 * @param hash Content hash of an existing blob.
+	 */
+	public synchronized void link(String path, String hash) {
+		path = normalizePath(path);
+		linkImpl(path, hash);
+		journal(JOURNAL_LINK, path, hash);
+	}
+
+	private void linkImpl(String path, String hash) {
+		if (dirs.contains(path)) {
+			throw new IllegalArgumentException("Can not replace directory " + path + " with a file.");
+		}
+		addParentDirs(path);
+		putIndexFile(path, hash);
+		modified = true;
+	}
+
+	private void addParentDirs(String path) {
+		String parent = getParentPath(path);
+		while (addDir(parent)) {
+			parent = getParentPath(parent);
+		}
+	}
+
+	private void putIndexFile(String path, String hash) {
+		if (files.put(path, hash) == null) {
+			addChild(path);
+		}
+	}
+
+	private boolean addDir(String path) {
+		if (dirs.add(path)) {
+			addChild(path);
+			return true;
+		}
+		return false;
+	}
+
+	private void addChild(String path) {
+		if (!path.isEmpty()) {
+			children.computeIfAbsent(getParentPath(path), (k) -> new LinkedHashSet<>()).add(path);
+		}
+	}
+
+	private void removeChild(String path) {
+		Set<String> siblings = children.get(getParentPath(path));
+		if (siblings != null) {
+			siblings.remove(path);
+		}
+	}
+
+	/**
+	 * Removes a directory and all of its contents from the index.
+	 */
+	private void removeTree(String path) {
+		Set<String> dirChildren = children.remove(path);
+		if (dirChildren != null) {
+			for (String child : dirChildren) {
+				if (files.remove(child) == null) {
+					removeTree(child);
+				}
+			}
+		}
+		dirs.remove(path);
+		removeChild(path);
+	}
+
+	synchronized boolean isDirectory(String path) {
+		return dirs.contains(path);
+	}
+
+	synchronized boolean exists(String path) {
+		return dirs.contains(path) || files.containsKey(path);
+	}
+
+	synchronized void mkdir(String path) {
+		if (mkdirImpl(path)) {
+			journal(JOURNAL_MKDIR, path, null);
+		}
+	}
+
+	private boolean mkdirImpl(String path) {
+		if (!files.containsKey(path) && dirs.contains(getParentPath(path)) && addDir(path)) {
+			modified = true;
+			return true;
+		}
+		return false;
+	}
+
+	synchronized List<String> listChildPaths(String path) {
+		Set<String> dirChildren = children.get(path);
+		if (dirChildren == null || !dirs.contains(path)) {
+			return new ArrayList<>();
+		}
+		return new ArrayList<>(dirChildren);
+	}
+
+	/**
+	 * Deletes a file or a directory with all of its contents. The blobs are
+	 * kept until the next garbage collection.
+	 *
+	 * @param path Path of the file or directory.
+	 */
+	public synchronized void delete(String path) {
+		String key = normalizePath(path);
+		if (deleteImpl(key)) {
+			journal(JOURNAL_DELETE, key, null);
+		}
+	}
+
+	private boolean deleteImpl(String key) {
+		if (files.remove(key) != null) {
+			removeChild(key);
+		} else if (!key.isEmpty() && dirs.contains(key)) {
+			removeTree(key);
+		} else {
+			return false;
+		}
+		modified = true;
+		return true;
+	}
+
+	/**
+	 * Copies a file or a directory within the store. No file data is copied,
+	 * the copies refer to the same blobs as the originals.
+	 *
+	 * @param source Path of the file or directory to copy.
+	 * @param target Path to copy to.
+	 */
+	public synchronized void copy(String source, String target) {
+		source = normalizePath(source);
+		target = normalizePath(target);
+		if (transfer(source, target, false)) {
+			journal(JOURNAL_COPY, source, target);
+		}
+	}
+
+	/**
+	 * Moves a file or a directory within the store.
+	 *
+	 * @param source Path of the file or directory to move.
+	 * @param target Path to move to.
+	 */
+	public synchronized void move(String source, String target) {
+		source = normalizePath(source);
+		target = normalizePath(target);
+		if (transfer(source, target, true)) {
+			journal(JOURNAL_MOVE, source, target);
+		}
+	}
+
+	private boolean transfer(String source, String target, boolean removeSource) {
+		if (source.equals(target)) {
+			return false;
+		}
+		String hash = files.get(source);
+		if (hash != null) {
+			if (removeSource) {
+				files.remove(source);
+				removeChild(source);
+			}
+			linkImpl(target, hash);
+			return true;
+		}
+		if (!dirs.contains(source)) {
+			return false;
+		}
+		if (target.startsWith(source + "/")) {
+			throw new IllegalArgumentException("Can not copy directory " + source + " into itself.");
+		}
+		Map<String, String> newFiles = new LinkedHashMap<>();
+		List<String> newDirs = new ArrayList<>();
+		collectTree(source, target, newFiles, newDirs);
+		if (removeSource) {
+			deleteImpl(source);
+		}
+		addParentDirs(target);
+		addDir(target);
+		for (String dir : newDirs) {
+			addDir(dir);
+		}
+		for (Map.Entry<String, String> e : newFiles.entrySet()) {
+			putIndexFile(e.getKey(), e.getValue());
+		}
+		modified = true;
+		return true;
+	}
+
+	private void collectTree(String source, String target, Map<String, String> outFiles, List<String> outDirs) {
+		Set<String> dirChildren = children.get(source);
+		if (dirChildren == null) {
+			return;
+		}
+		int prefixLength = source.isEmpty() ? 0 : source.length() + 1;
+		for (String child : dirChildren) {
+			String childTarget = target + "/" + child.substring(prefixLength);
+			String hash = files.get(child);
+			if (hash != null) {
+				outFiles.put(childTarget, hash);
+			} else {
+				outDirs.add(childTarget);
+				collectTree(child, childTarget, outFiles, outDirs);
+			}
+		}
+	}
+
+	/**
+	 * Deletes all blobs that are not referenced by any file, as well as
+	 * leftover temporary files. Must not be called while output streams of the
+	 * store are open. Waits for files that are being stored to be linked.
+	 *
+	 * @return The number of deleted blobs.
+	 */
+	public int collectGarbage() {
+		blobLock.writeLock().lock();
+		try {
+			synchronized (this) {
+				Set<String> referenced = new HashSet<>(files.values());
+				int deleted = 0;
+				for (FSFile bucket : blobDir.listFiles()) {
+					for (FSFile blob : bucket.listFiles()) {
+						if (!referenced.contains(blob.getName())) {
+							blob.delete();
+							deleted++;
+						}
+					}
+				}
+				for (FSFile temp : tempDir.listFiles()) {
+					temp.delete();
+				}
+				return deleted;
+			}
+		} finally {
+			blobLock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package ctrmap.stdlib.fs.accessors;
+
+import ctrmap.stdlib.crypto.ContentHash;
+import ctrmap.stdlib.fs.FSFile;
+import ctrmap.stdlib.fs.FSUtil;
+import ctrmap.stdlib.io.base.iface.IOStream;
+import ctrmap.stdlib.io.base.iface.ReadableStream;
+import ctrmap.stdlib.io.base.iface.WriteableStream;
+import ctrmap.stdlib.io.base.impl.WriteableWrapper;
+import ctrmap.stdlib.io.base.impl.access.MemoryStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file or directory in a BlobStore.
+ */
+public class BlobStoreFile extends FSFile {
+
+	private final BlobStore store;
+	private String path;
+
+	BlobStoreFile(BlobStore store, String path) {
+		this.store = store;
+		this.path = path;
+	}
+
+	/**
+	 * Gets the store this file is in.
+	 *
+	 * @return
+	 */
+	public BlobStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Gets the path of this file relative to the store root.
+	 *
+	 * @return
+	 */
+	public String getStorePath() {
+		return path;
+	}
+
+	/**
+	 * Gets the blob holding the contents of this file.
+	 *
+	 * @return The blob, or null if this is not a file.
+	 */
+	public FSFile getBlob() {
+		String hash = store.getHash(path);
+		return hash == null ? null : store.getBlob(hash);
+	}
+
+	@Override
+	public FSFile getChild(String forName) {
+		if (forName == null || forName.isEmpty()) {
+			return this;
+		}
+		return new BlobStoreFile(store, BlobStore.normalizePath(path.isEmpty() ? forName : path + "/" + forName));
+	}
+
+	@Override
+	public FSFile getParent() {
+		if (path.isEmpty()) {
+			return null;
+		}
+		int end = path.lastIndexOf('/');
+		return new BlobStoreFile(store, end == -1 ? "" : path.substring(0, end));
+	}
+
+	@Override
+	public String getPath() {
+		String rootPath = store.getStorageRoot().getPath();
+		return path.isEmpty() ? rootPath : rootPath + "/" + path;
+	}
+
+	@Override
+	public void mkdir() {
+		store.mkdir(path);
+	}
+
+	@Override
+	public void setPath(String newPath) {
+		String newStorePath = BlobStore.normalizePath(FSFile.getPathRelativeTo(newPath.replace('\\', '/'), store.getStorageRoot().getPath()));
+		store.move(path, newStorePath);
+		path = newStorePath;
+	}
+
+	@Override
+	public void delete() {
+		store.delete(path);
+	}
+
+	@Override
+	public int length() {
+		FSFile blob = getBlob();
+		return blob == null ? 0 : blob.length();
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return store.isDirectory(path);
+	}
+
+	@Override
+	public boolean exists() {
+		return store.exists(path);
+	}
+
+	@Override
+	public String getName() {
+		if (path.isEmpty()) {
+			return store.getStorageRoot().getName();
+		}
+		return FSUtil.getFileName(path);
+	}
+
+	@Override
+	public ReadableStream getInputStream() {
+		FSFile blob = getBlob();
+		return blob == null ? null : blob.getInputStream();
+	}
+
+	@Override
+	public WriteableStream getOutputStream() {
+		//Written to a temporary file while hashing, then stored as a blob if the contents are new
+		FSFile temp = store.createTempFile();
+		MessageDigest digest = ContentHash.createDigest();
+		return new WriteableWrapper(temp.getOutputStream()) {
+			@Override
+			public void write(int i) throws IOException {
+				out.write(i);
+				digest.update((byte) i);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				digest.update(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+				String hash = ContentHash.toHexString(digest.digest());
+				store.commitTempFile(temp, hash, path);
+			}
+		};
+	}
+
+	@Override
+	public IOStream getIO() {
+		FSFile blob = getBlob();
+		byte[] data = blob == null ? new byte[0] : blob.getBytes();
+		return new MemoryStream(data) {
+			@Override
+			public void close() throws IOException {
+				store.putFile(path, toByteArray());
+			}
+		};
+	}
+
+	@Override
+	public List<? extends FSFile> listFiles() {
+		List<BlobStoreFile> result = new ArrayList<>();
+		for (String childPath : store.listChildPaths(path)) {
+			result.add(new BlobStoreFile(store, childPath));
+		}
+		return result;
+	}
+
+	@Override
+	public int getPermissions() {
+		return FSF_ATT_READ | FSF_ATT_WRITE;
+	}
+}
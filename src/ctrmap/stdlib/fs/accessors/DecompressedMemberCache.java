@@ -0,0 +1,367 @@
+package ctrmap.stdlib.fs.accessors;
+
+import ctrmap.stdlib.fs.FSFile;
+import ctrmap.stdlib.io.base.iface.ReadableStream;
+import ctrmap.stdlib.io.base.impl.ReadableWrapper;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A least-recently-used cache of decompressed archive members.
+ *
+ * Entries are keyed by the path of the archive and the path of the member
+ * inside it, and are bound to the length and modification time of the archive
+ * when they were loaded, so that a rewritten archive never serves outdated
+ * data. Archives that do not report a modification time are not cached. The
+ * total size of the cached data is kept within a byte budget by evicting the
+ * least recently used members.
+ *
+ * Members are not decompressed up front to fill the cache. Instead, the
+ * streams of the members are wrapped to record the data as it is read, and a
+ * member is cached only once it has been read to the end. Partial reads, such
+ * as checking the header of a file, stay streamed and cost nothing.
+ *
+ * A shared instance is used by ZipArchive and ArcFileMember.
+ */
+public class DecompressedMemberCache {
+
+	/**
+	 * Byte budget of the default shared cache.
+	 */
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	private static volatile DecompressedMemberCache sharedCache = new DecompressedMemberCache(DEFAULT_BUDGET);
+
+	private final long budget;
+	private final long maxEntrySize;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size = 0;
+
+	/**
+	 * Creates a member cache.
+	 *
+	 * @param budget Maximum total size of the cached data in bytes. Members
+	 * larger than an eighth of the budget are never cached.
+	 */
+	public DecompressedMemberCache(long budget) {
+		this.budget = budget;
+		maxEntrySize = budget / 8;
+	}
+
+	/**
+	 * Gets the cache shared by the archive accessors.
+	 *
+	 * @return The cache, or null if caching is disabled.
+	 */
+	public static DecompressedMemberCache getShared() {
+		return sharedCache;
+	}
+
+	/**
+	 * Replaces the cache shared by the archive accessors.
+	 *
+	 * @param cache The new cache, or null to disable caching.
+	 */
+	public static void setShared(DecompressedMemberCache cache) {
+		sharedCache = cache;
+	}
+
+	/**
+	 * Checks if a member would be cached at all.
+	 *
+	 * @param archive The archive file.
+	 * @param memberSize Decompressed size of the member.
+	 * @return
+	 */
+	public boolean accepts(FSFile archive, long memberSize) {
+		return memberSize >= 0 && memberSize <= maxEntrySize && archive.lastModified() != 0;
+	}
+
+	/**
+	 * Gets the cached data of a member.
+	 *
+	 * @param archive The archive file.
+	 * @param memberPath Path of the member in the archive.
+	 * @return The data, or null if it is not cached or the archive has changed.
+	 * The array must not be modified.
+	 */
+	public byte[] get(FSFile archive, String memberPath) {
+		Key key = new Key(archive.getPath(), memberPath);
+		int length = archive.length();
+		long lastModified = archive.lastModified();
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (e == null) {
+				return null;
+			}
+			if (e.archiveLength != length || e.archiveLastModified != lastModified) {
+				remove(key);
+				return null;
+			}
+			return e.data;
+		}
+	}
+
+	/**
+	 * Wraps the stream of a member so that its data is cached once the stream
+	 * has been read to the end. If the stream is skipped through, the member
+	 * is not cached.
+	 *
+	 * @param archive The archive file.
+	 * @param memberPath Path of the member in the archive.
+	 * @param memberSize Decompressed size of the member.
+	 * @param in Stream of the decompressed member data.
+	 * @return The wrapped stream, or the stream itself if the member would not
+	 * be cached.
+	 */
+	public InputStream capture(FSFile archive, String memberPath, long memberSize, InputStream in) {
+		if (in == null || !accepts(archive, memberSize)) {
+			return in;
+		}
+		Capture capture = new Capture(archive, memberPath, (int) memberSize);
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int r = in.read();
+				capture.read(r);
+				return r;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int r = in.read(b, off, len);
+				capture.read(b, off, r);
+				return r;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				capture.cancel();
+				return in.skip(n);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Wraps the stream of a member so that its data is cached once the stream
+	 * has been read to the end. If the stream is skipped through, the member
+	 * is not cached.
+	 *
+	 * @param archive The archive file.
+	 * @param memberPath Path of the member in the archive.
+	 * @param memberSize Decompressed size of the member.
+	 * @param in Stream of the decompressed member data.
+	 * @return The wrapped stream, or the stream itself if the member would not
+	 * be cached.
+	 */
+	public ReadableStream capture(FSFile archive, String memberPath, long memberSize, ReadableStream in) {
+		if (in == null || !accepts(archive, memberSize)) {
+			return in;
+		}
+		Capture capture = new Capture(archive, memberPath, (int) memberSize);
+		return new ReadableWrapper(in) {
+			@Override
+			public int read() throws IOException {
+				int r = in.read();
+				capture.read(r);
+				return r;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int r = in.read(b, off, len);
+				capture.read(b, off, r);
+				return r;
+			}
+
+			@Override
+			public int skipBytes(int amount) throws IOException {
+				capture.cancel();
+				return in.skipBytes(amount);
+			}
+		};
+	}
+
+	private synchronized void put(Key key, Entry e) {
+		remove(key);
+		entries.put(key, e);
+		size += e.data.length;
+		Iterator<Entry> it = entries.values().iterator();
+		while (size > budget && it.hasNext()) {
+			size -= it.next().data.length;
+			it.remove();
+		}
+	}
+
+	private void remove(Key key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			size -= old.data.length;
+		}
+	}
+
+	/**
+	 * Removes all cached members of an archive.
+	 *
+	 * @param archive The archive file.
+	 */
+	public synchronized void invalidate(FSFile archive) {
+		String archivePath = archive.getPath();
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> e = it.next();
+			if (e.getKey().archivePath.equals(archivePath)) {
+				size -= e.getValue().data.length;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached members.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Gets the total size of the cached data.
+	 *
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the byte budget of the cache.
+	 *
+	 * @return
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Data read so far from the stream of a member.
+	 */
+	private class Capture {
+
+		private final Key key;
+		//The modification state is sampled before reading, so data read during a concurrent rewrite is discarded later
+		private final int archiveLength;
+		private final long archiveLastModified;
+		private final int size;
+
+		private byte[] data;
+		private int count = 0;
+
+		public Capture(FSFile archive, String memberPath, int size) {
+			key = new Key(archive.getPath(), memberPath);
+			archiveLength = archive.length();
+			archiveLastModified = archive.lastModified();
+			this.size = size;
+			data = new byte[Math.min(size, 8192)];
+		}
+
+		public void read(int b) {
+			if (b == -1) {
+				finish();
+			} else if (ensureCapacity(1)) {
+				data[count++] = (byte) b;
+				if (count == size) {
+					finish();
+				}
+			}
+		}
+
+		public void read(byte[] b, int off, int len) {
+			if (len == -1) {
+				finish();
+			} else if (ensureCapacity(len)) {
+				System.arraycopy(b, off, data, count, len);
+				count += len;
+				if (count == size) {
+					finish();
+				}
+			}
+		}
+
+		private boolean ensureCapacity(int len) {
+			if (data == null) {
+				return false;
+			}
+			if (count + len > size) {
+				//Longer than the member is supposed to be
+				cancel();
+				return false;
+			}
+			if (count + len > data.length) {
+				data = Arrays.copyOf(data, (int) Math.min(size, Math.max((long) data.length * 2, count + len)));
+			}
+			return true;
+		}
+
+		public void cancel() {
+			data = null;
+		}
+
+		private void finish() {
+			if (data != null && count == size) {
+				put(key, new Entry(data, archiveLength, archiveLastModified));
+			}
+			data = null;
+		}
+	}
+
+	private static class Key {
+
+		public final String archivePath;
+		public final String memberPath;
+
+		public Key(String archivePath, String memberPath) {
+			this.archivePath = archivePath;
+			this.memberPath = memberPath;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(archivePath, memberPath);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Key) {
+				Key k = (Key) obj;
+				return archivePath.equals(k.archivePath) && memberPath.equals(k.memberPath);
+			}
+			return false;
+		}
+	}
+
+	private static class Entry {
+
+		public final byte[] data;
+		public final int archiveLength;
+		public final long archiveLastModified;
+
+		public Entry(byte[] data, int archiveLength, long archiveLastModified) {
+			this.data = data;
+			this.archiveLength = archiveLength;
+			this.archiveLastModified = archiveLastModified;
+		}
+	}
+}
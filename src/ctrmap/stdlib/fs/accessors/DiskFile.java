@@ -79,7 +79,14 @@ public class DiskFile extends FSFile {
 	@Override
 	public BufferedOutputStream getNativeOutputStream() {
 		try {
-			return new BufferedOutputStream(new FileOutputStream(file));
+			DiskFileStatCache.invalidateCurrent(file);
+			return new BufferedOutputStream(new FileOutputStream(file) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					DiskFileStatCache.invalidateCurrent(file);
+				}
+			});
 		} catch (FileNotFoundException ex) {
 			Logger.getLogger(DiskFile.class.getName()).log(Level.SEVERE, null, ex);
 		}
@@ -88,13 +95,30 @@ public class DiskFile extends FSFile {
 
 	@Override
 	public IOStream getIO() {
-		return new BufferedIOStream(FileStream.create(file));
+		DiskFileStatCache.invalidateCurrent(file);
+		return new BufferedIOStream(FileStream.create(file)) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				DiskFileStatCache.invalidateCurrent(file);
+			}
+		};
 	}
 
 	@Override
 	public List<FSFile> listFiles() {
-		File[] files = file.listFiles();
 		List<FSFile> r = new ArrayList<>();
+		DiskFileStatCache cache = DiskFileStatCache.current();
+		if (cache != null) {
+			List<File> files = cache.getListing(file);
+			if (files != null) {
+				for (File f : files) {
+					r.add(new DiskFile(f));
+				}
+			}
+			return r;
+		}
+		File[] files = file.listFiles();
 		if (files != null) {
 			for (File f : files) {
 				r.add(new DiskFile(f));
@@ -105,11 +129,19 @@ public class DiskFile extends FSFile {
 
 	@Override
 	public boolean isDirectory() {
+		DiskFileStatCache cache = DiskFileStatCache.current();
+		if (cache != null) {
+			return cache.getStat(file).directory;
+		}
 		return file.isDirectory();
 	}
 
 	@Override
 	public boolean isFile() {
+		DiskFileStatCache cache = DiskFileStatCache.current();
+		if (cache != null) {
+			return cache.getStat(file).regularFile;
+		}
 		return file.isFile();
 	}
 
@@ -119,6 +151,10 @@ public class DiskFile extends FSFile {
 
 	@Override
 	public boolean exists() {
+		DiskFileStatCache cache = DiskFileStatCache.current();
+		if (cache != null) {
+			return cache.getStat(file).exists;
+		}
 		return file.exists();
 	}
 
@@ -139,6 +175,7 @@ public class DiskFile extends FSFile {
 	@Override
 	public void mkdir() {
 		file.mkdir();
+		DiskFileStatCache.invalidateCurrent(file);
 	}
 
 	@Override
@@ -154,9 +191,22 @@ public class DiskFile extends FSFile {
 
 	@Override
 	public int length() {
+		DiskFileStatCache cache = DiskFileStatCache.current();
+		if (cache != null) {
+			return (int) cache.getStat(file).length;
+		}
 		return (int) file.length();
 	}
 
+	@Override
+	public long lastModified() {
+		DiskFileStatCache cache = DiskFileStatCache.current();
+		if (cache != null) {
+			return cache.getStat(file).lastModified;
+		}
+		return file.lastModified();
+	}
+
 	@Override
 	public void delete() {
 		if (isDirectory()) {
@@ -165,6 +215,7 @@ public class DiskFile extends FSFile {
 			}
 		}
 		file.delete();
+		DiskFileStatCache.invalidateCurrent(file);
 	}
 
 	@Override
@@ -173,6 +224,8 @@ public class DiskFile extends FSFile {
 			try {
 				new File(targetPath).getParentFile().mkdirs();
 				Files.move(file.toPath(), Paths.get(targetPath), StandardCopyOption.REPLACE_EXISTING);
+				DiskFileStatCache.invalidateCurrent(file);
+				DiskFileStatCache.invalidateCurrent(new File(targetPath));
 			} catch (IOException ex) {
 				Logger.getLogger(DiskFile.class.getName()).log(Level.SEVERE, null, ex);
 			}
@@ -182,6 +235,11 @@ public class DiskFile extends FSFile {
 	@Override
 	public int getChildCount() {
 		if (isDirectory()) {
+			DiskFileStatCache cache = DiskFileStatCache.current();
+			if (cache != null) {
+				List<File> files = cache.getListing(file);
+				return files != null ? files.size() : 0;
+			}
 			return file.list().length;
 		}
 		return 0;
@@ -0,0 +1,313 @@
+package ctrmap.stdlib.fs.accessors;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of file metadata used by DiskFile.
+ *
+ * While a cache is active, DiskFile answers exists, isDirectory, isFile,
+ * length, lastModified and listFiles queries from memory. Directory listings
+ * are read in bulk and record the attributes of every child, so that
+ * subsequent queries on the children do not reach the OS at all. Writes made
+ * through DiskFile and FSUtil invalidate the affected entries in the cache of
+ * the writing thread and in the global cache, but changes made outside of the
+ * program are only picked up after the cache is left or its entries expire.
+ *
+ * A cache can either be entered for the duration of an operation on the
+ * current thread, or set as the global cache with an expiry time.
+ */
+public class DiskFileStatCache {
+
+	private static final ThreadLocal<DiskFileStatCache> SCOPED_CACHE = new ThreadLocal<>();
+	private static volatile DiskFileStatCache globalCache = null;
+
+	private final long ttlMillis;
+
+	private final Map<String, Stat> stats = new ConcurrentHashMap<>();
+	private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a stat cache whose entries never expire. Suitable for caches
+	 * scoped to a single operation.
+	 */
+	public DiskFileStatCache() {
+		this(0);
+	}
+
+	/**
+	 * Creates a stat cache with a time-bounded validity of its entries.
+	 *
+	 * @param ttlMillis Time in milliseconds after which an entry is re-read, or
+	 * 0 if entries should never expire.
+	 */
+	public DiskFileStatCache(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Gets the cache active on the current thread.
+	 *
+	 * @return The innermost entered cache of this thread, or the global cache
+	 * if none is entered. Null if no cache is active.
+	 */
+	public static DiskFileStatCache current() {
+		DiskFileStatCache scoped = SCOPED_CACHE.get();
+		return scoped != null ? scoped : globalCache;
+	}
+
+	/**
+	 * Sets a cache to be used by all threads that have not entered their own.
+	 *
+	 * @param cache The cache, or null to disable global caching.
+	 */
+	public static void setGlobalCache(DiskFileStatCache cache) {
+		globalCache = cache;
+	}
+
+	/**
+	 * Activates this cache on the current thread until the returned scope is
+	 * closed.
+	 *
+	 * @return A scope to be closed once the operation is done.
+	 */
+	public Scope enter() {
+		Scope scope = new Scope(SCOPED_CACHE.get());
+		SCOPED_CACHE.set(this);
+		return scope;
+	}
+
+	/**
+	 * Enters a new operation-scoped cache on the current thread.
+	 *
+	 * @return A scope to be closed once the operation is done.
+	 */
+	public static Scope openScope() {
+		return new DiskFileStatCache().enter();
+	}
+
+	/**
+	 * Gets the cache entered on the current thread, without falling back to
+	 * the global cache. Used to carry the cache of an operation over to its
+	 * worker threads.
+	 *
+	 * @return The innermost entered cache of this thread, or null.
+	 */
+	public static DiskFileStatCache currentScoped() {
+		return SCOPED_CACHE.get();
+	}
+
+	/**
+	 * Removes a file and the listing of its parent directory from the cache
+	 * entered on the current thread and from the global cache, if any.
+	 *
+	 * @param f The changed file.
+	 */
+	public static void invalidateCurrent(File f) {
+		DiskFileStatCache scoped = SCOPED_CACHE.get();
+		if (scoped != null) {
+			scoped.invalidate(f);
+		}
+		DiskFileStatCache global = globalCache;
+		if (global != null && global != scoped) {
+			global.invalidate(f);
+		}
+	}
+
+	/**
+	 * Removes a file and the listing of its parent directory from this cache.
+	 * If the file is a directory, all cached entries beneath it are removed as
+	 * well.
+	 *
+	 * @param f The changed file.
+	 */
+	public void invalidate(File f) {
+		String key = getKey(f);
+		Stat oldStat = stats.remove(key);
+		Listing oldListing = listings.remove(key);
+		if (oldListing != null || (oldStat != null && oldStat.directory)) {
+			String prefix = key + File.separator;
+			stats.keySet().removeIf((k) -> k.startsWith(prefix));
+			listings.keySet().removeIf((k) -> k.startsWith(prefix));
+		}
+		File parent = f.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			listings.remove(getKey(parent));
+		}
+	}
+
+	/**
+	 * Removes all entries from this cache.
+	 */
+	public void clear() {
+		stats.clear();
+		listings.clear();
+	}
+
+	private static String getKey(File f) {
+		return f.getAbsolutePath();
+	}
+
+	private boolean isValid(long timestamp) {
+		return ttlMillis <= 0 || System.currentTimeMillis() - timestamp < ttlMillis;
+	}
+
+	/**
+	 * Gets the metadata of a file, reading it from the OS if not cached.
+	 *
+	 * @param f The file.
+	 * @return
+	 */
+	Stat getStat(File f) {
+		String key = getKey(f);
+		Stat s = stats.get(key);
+		if (s == null || !isValid(s.timestamp)) {
+			s = readStat(f.toPath());
+			stats.put(key, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the children of a directory, reading them in bulk from the OS if not
+	 * cached.
+	 *
+	 * @param dir The directory.
+	 * @return The child files, or null if the file is not a readable directory.
+	 */
+	List<File> getListing(File dir) {
+		String key = getKey(dir);
+		Listing l = listings.get(key);
+		if (l == null || !isValid(l.timestamp)) {
+			l = readListing(dir);
+			if (l == null) {
+				return null;
+			}
+			listings.put(key, l);
+		}
+		return l.children;
+	}
+
+	private Listing readListing(File dir) {
+		Path dirPath = dir.toPath();
+		List<File> children = new ArrayList<>();
+		boolean[] readable = new boolean[]{false};
+		try {
+			//The walker passes on the attributes delivered by the directory read where the platform provides them, instead of querying every child
+			Files.walkFileTree(dirPath, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path p, BasicFileAttributes attrs) {
+					readable[0] = true;
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
+					if (p.equals(dirPath)) {
+						//Not a directory
+						return FileVisitResult.TERMINATE;
+					}
+					File child = new File(dir, p.getFileName().toString());
+					children.add(child);
+					//Links are reported as such by the walk, but java.io.File resolves them
+					stats.put(getKey(child), attrs.isSymbolicLink() ? readStat(p) : toStat(attrs));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path p, IOException exc) {
+					if (!p.equals(dirPath)) {
+						//The stat of the child is read on demand
+						children.add(new File(dir, p.getFileName().toString()));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException ex) {
+			return null;
+		}
+		if (!readable[0]) {
+			return null;
+		}
+		return new Listing(Collections.unmodifiableList(children));
+	}
+
+	private static Stat readStat(Path p) {
+		try {
+			return toStat(Files.readAttributes(p, BasicFileAttributes.class));
+		} catch (IOException ex) {
+			return new Stat(false, false, false, 0, 0);
+		}
+	}
+
+	private static Stat toStat(BasicFileAttributes attrs) {
+		return new Stat(true, attrs.isDirectory(), attrs.isRegularFile(), attrs.isDirectory() ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis());
+	}
+
+	/**
+	 * Cached metadata of a single file.
+	 */
+	static class Stat {
+
+		public final boolean exists;
+		public final boolean directory;
+		public final boolean regularFile;
+		public final long length;
+		public final long lastModified;
+
+		public final long timestamp = System.currentTimeMillis();
+
+		public Stat(boolean exists, boolean directory, boolean regularFile, long length, long lastModified) {
+			this.exists = exists;
+			this.directory = directory;
+			this.regularFile = regularFile;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static class Listing {
+
+		public final List<File> children;
+
+		public final long timestamp = System.currentTimeMillis();
+
+		public Listing(List<File> children) {
+			this.children = children;
+		}
+	}
+
+	/**
+	 * An active scope of a DiskFileStatCache on the current thread. Closing it
+	 * restores the previously active cache.
+	 */
+	public static class Scope implements AutoCloseable {
+
+		private final DiskFileStatCache previous;
+		private boolean closed = false;
+
+		private Scope(DiskFileStatCache previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				SCOPED_CACHE.set(previous);
+				closed = true;
+			}
+		}
+	}
+}
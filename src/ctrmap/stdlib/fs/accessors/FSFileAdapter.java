@@ -100,4 +100,9 @@ public class FSFileAdapter extends FSFile {
 		return source.getPermissions();
 	}
 
+	@Override
+	public long lastModified() {
+		return source.lastModified();
+	}
+
 }
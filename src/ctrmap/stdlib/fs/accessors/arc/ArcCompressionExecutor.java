@@ -0,0 +1,138 @@
+package ctrmap.stdlib.fs.accessors.arc;
+
+import ctrmap.stdlib.thread.ThreadingUtils;
+import ctrmap.stdlib.util.ProgressMonitor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Helper for preparing the members of an ArcFile concurrently.
+ *
+ * Compressing archive members is CPU-bound and every member is independent,
+ * so an ArcFileAccessor can process all inputs of writeToArcFile on multiple
+ * cores and then assemble the archive from the results, which are returned in
+ * the order of the inputs.
+ */
+public class ArcCompressionExecutor {
+
+	/**
+	 * Default number of worker threads, one per available core.
+	 */
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Processes a single archive member, typically by reading and compressing
+	 * its data according to ArcInput.getCompressorBehavior.
+	 *
+	 * @param <R> Type of the result.
+	 */
+	public static interface MemberProcessor<R> {
+
+		public R process(ArcInput input) throws Exception;
+	}
+
+	/**
+	 * Processes archive members concurrently.
+	 *
+	 * @param <R> Type of the results.
+	 * @param inputs The members to process.
+	 * @param processor The processing function. It is called concurrently for
+	 * different members.
+	 * @param parallelism Maximum number of worker threads.
+	 * @param monitor An optional progress monitor.
+	 * @return The results in the order of the inputs.
+	 * @throws IOException If any of the members could not be processed. The
+	 * archive should not be written in that case.
+	 */
+	public static <R> List<R> processMembers(List<ArcInput> inputs, MemberProcessor<R> processor, int parallelism, ProgressMonitor monitor) throws IOException {
+		List<R> results = new ArrayList<>(inputs.size());
+		if (inputs.isEmpty()) {
+			return results;
+		}
+		Progress progress = new Progress(monitor, inputs.size());
+
+		if (parallelism <= 1 || inputs.size() == 1) {
+			for (ArcInput in : inputs) {
+				results.add(processMember(in, processor, progress));
+			}
+			return results;
+		}
+
+		List<Callable<R>> tasks = new ArrayList<>(inputs.size());
+		for (ArcInput in : inputs) {
+			tasks.add(() -> processMember(in, processor, progress));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(inputs.size(), parallelism));
+		try {
+			for (Future<R> f : executor.invokeAll(tasks)) {
+				try {
+					results.add(f.get());
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					throw new IOException(cause);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while processing archive members.");
+		} finally {
+			ThreadingUtils.shutdownWaitService(executor);
+		}
+		return results;
+	}
+
+	/**
+	 * Processes archive members concurrently using the default parallelism.
+	 *
+	 * @param <R> Type of the results.
+	 * @param inputs The members to process.
+	 * @param processor The processing function.
+	 * @param monitor An optional progress monitor.
+	 * @return The results in the order of the inputs.
+	 * @throws IOException If any of the members could not be processed.
+	 */
+	public static <R> List<R> processMembers(List<ArcInput> inputs, MemberProcessor<R> processor, ProgressMonitor monitor) throws IOException {
+		return processMembers(inputs, processor, DEFAULT_PARALLELISM, monitor);
+	}
+
+	private static <R> R processMember(ArcInput in, MemberProcessor<R> processor, Progress progress) throws IOException {
+		R result;
+		try {
+			result = processor.process(in);
+		} catch (Exception ex) {
+			throw new IOException("Failed to process archive member " + in.targetPath, ex);
+		}
+		progress.memberDone(in);
+		return result;
+	}
+
+	private static class Progress {
+
+		private final ProgressMonitor monitor;
+		private final int total;
+		private int done = 0;
+
+		public Progress(ProgressMonitor monitor, int total) {
+			this.monitor = monitor;
+			this.total = total;
+		}
+
+		public synchronized void memberDone(ArcInput in) {
+			done++;
+			if (monitor != null) {
+				monitor.setProgressSubTitle("Compressing " + in.targetPath);
+				monitor.setProgressPercentage((int) (done / (float) total * 100));
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package ctrmap.stdlib.fs.accessors.arc;
 
 import ctrmap.stdlib.fs.FSFile;
 import ctrmap.stdlib.fs.FSUtil;
+import ctrmap.stdlib.fs.accessors.DecompressedMemberCache;
 import ctrmap.stdlib.fs.accessors.FSFileAdapter;
 import ctrmap.stdlib.io.base.impl.ext.data.DataIOStream;
 import java.util.List;
@@ -14,6 +15,8 @@ public class ArcFile extends FSFileAdapter {
 
 	private ArcFileAccessor accessor;
 
+	private ArcMemberIndex memberIndex;
+
 	public ArcFile(FSFile source, ArcFileAccessor accessor) {
 		super(source);
 		this.source = source;
@@ -26,9 +29,49 @@ public class ArcFile extends FSFileAdapter {
 			return null;
 		}
 		//System.out.println("ArcFile getChild requested " + this + "/" + forName);
+		//Members are addressed by their full path, so the member table is only needed for listing
 		return new ArcFileMember(this, FSUtil.cleanPathFromRootSlash(forName), accessor);
 	}
 
+	/**
+	 * Gets the member index of the archive, rebuilding it if the archive has
+	 * changed since it was last built.
+	 *
+	 * @return
+	 */
+	synchronized ArcMemberIndex getMemberIndex() {
+		if (memberIndex == null || !memberIndex.isUpToDate(source)) {
+			memberIndex = new ArcMemberIndex(this, accessor);
+		}
+		return memberIndex;
+	}
+
+	/**
+	 * Gets the member index of the archive if it has already been built and
+	 * is still up to date.
+	 *
+	 * @return The member index, or null if there is none.
+	 */
+	synchronized ArcMemberIndex getMemberIndexIfBuilt() {
+		if (memberIndex != null && !memberIndex.isUpToDate(source)) {
+			memberIndex = null;
+		}
+		return memberIndex;
+	}
+
+	/**
+	 * Discards the cached member table and member contents of the archive.
+	 * Should be called after the archive has been rewritten, for example by
+	 * ArcFileAccessor.writeToArcFile.
+	 */
+	public synchronized void invalidateMemberIndex() {
+		memberIndex = null;
+		DecompressedMemberCache cache = DecompressedMemberCache.getShared();
+		if (cache != null) {
+			cache.invalidate(source);
+		}
+	}
+
 	@Override
 	public void mkdir() {
 		throw new UnsupportedOperationException("ArcFiles can not be directories.");
@@ -45,7 +88,7 @@ public class ArcFile extends FSFileAdapter {
 	}*/
 	@Override
 	public List<FSFile> listFiles() {
-		return accessor.getArcFiles(this);
+		return getMemberIndex().getMembers();
 	}
 
 	@Override
@@ -56,7 +99,7 @@ public class ArcFile extends FSFileAdapter {
 
 	@Override
 	public int getChildCount() {
-		return accessor.getArcFiles(this).size();
+		return getMemberIndex().size();
 	}
 
 	@Override
@@ -5,6 +5,8 @@ import ctrmap.stdlib.io.base.iface.IOStream;
 import ctrmap.stdlib.io.base.iface.ReadableStream;
 import ctrmap.stdlib.io.base.iface.WriteableStream;
 import ctrmap.stdlib.util.ProgressMonitor;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 public interface ArcFileAccessor {
@@ -13,6 +15,26 @@ public interface ArcFileAccessor {
 	public ReadableStream getInputStreamForArcMember(ArcFile arc, String path);
 	public WriteableStream getOutputStreamForArcMember(ArcFile arc, String path);
 	public int getDataSizeForArcMember(ArcFile arc, String path);
+	/**
+	 * Writes entries into an ArcFile. Implementations should call
+	 * ArcFile.invalidateMemberIndex once the archive has been written.
+	 */
 	public void writeToArcFile(ArcFile arc, ProgressMonitor monitor, ArcInput... inputs);
 	public boolean isArcFile(FSFile f);
+
+	/**
+	 * Prepares the inputs of writeToArcFile concurrently, so that the archive
+	 * can then be assembled from the results in order.
+	 *
+	 * @param <R> Type of the prepared members.
+	 * @param monitor An optional progress monitor.
+	 * @param processor Function preparing (compressing) a single member.
+	 * @param inputs The members to prepare.
+	 * @return The prepared members in the order of the inputs.
+	 * @throws IOException If any of the members could not be prepared, in
+	 * which case the archive must not be written.
+	 */
+	public default <R> List<R> processArcInputs(ProgressMonitor monitor, ArcCompressionExecutor.MemberProcessor<R> processor, ArcInput... inputs) throws IOException {
+		return ArcCompressionExecutor.processMembers(Arrays.asList(inputs), processor, monitor);
+	}
 }
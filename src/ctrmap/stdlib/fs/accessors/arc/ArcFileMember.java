@@ -1,10 +1,12 @@
 package ctrmap.stdlib.fs.accessors.arc;
 
 import ctrmap.stdlib.fs.FSFile;
+import ctrmap.stdlib.fs.accessors.DecompressedMemberCache;
 import ctrmap.stdlib.io.base.iface.IOStream;
 import ctrmap.stdlib.io.base.iface.ReadableStream;
 import ctrmap.stdlib.io.base.iface.WriteableStream;
-import java.util.ArrayList;
+import ctrmap.stdlib.io.base.impl.InputStreamReadable;
+import java.io.ByteArrayInputStream;
 import java.util.List;
 
 /**
@@ -21,6 +23,15 @@ public class ArcFileMember extends FSFile{
 		this.accessor = accessor;
 	}
 
+	/**
+	 * Gets the path of this member inside its archive.
+	 *
+	 * @return
+	 */
+	public String getPathInArc() {
+		return path;
+	}
+
 	@Override
 	public FSFile getChild(String forName) {
 		return null;//no children for arc subfiles as they are retrieved with full path directly
@@ -53,27 +64,44 @@ public class ArcFileMember extends FSFile{
 
 	@Override
 	public ReadableStream getInputStream() {
+		DecompressedMemberCache cache = DecompressedMemberCache.getShared();
+		FSFile source = arc.getSource();
+		if (cache != null) {
+			byte[] data = cache.get(source, path);
+			if (data != null) {
+				return new InputStreamReadable(new ByteArrayInputStream(data));
+			}
+			return cache.capture(source, path, length(), accessor.getInputStreamForArcMember(arc, path));
+		}
 		return accessor.getInputStreamForArcMember(arc, path);
 	}
 
 	@Override
 	public WriteableStream getOutputStream() {
+		arc.invalidateMemberIndex();
 		return accessor.getOutputStreamForArcMember(arc, path);
 	}
 
 	@Override
 	public IOStream getIO() {
+		arc.invalidateMemberIndex();
 		return accessor.getIOForArcMember(arc, path);
 	}
 
 	@Override
 	public List<FSFile> listFiles() {
-		return new ArrayList<>();
+		//Members with a path below this one, since arc subfiles are stored with their full path
+		return arc.getMemberIndex().getMembersUnder(path);
 	}
 
 	@Override
 	public int length() {
-		return accessor.getDataSizeForArcMember(arc, path);
+		ArcMemberIndex index = arc.getMemberIndexIfBuilt();
+		if (index == null) {
+			//Not worth reading the whole member table for a single member
+			return accessor.getDataSizeForArcMember(arc, path);
+		}
+		return index.getMemberSize(arc, accessor, path);
 	}
 
 	@Override
@@ -83,7 +111,7 @@ public class ArcFileMember extends FSFile{
 
 	@Override
 	public int getChildCount() {
-		return 0;//costly
+		return arc.getMemberIndex().getMembersUnder(path).size();
 	}
 
 	@Override
@@ -35,6 +35,18 @@ public class ArcInput {
 		this(path, new MemoryFile(path, data));
 	}
 
+	/**
+	 * Gets the compression directive of this input.
+	 *
+	 * @return
+	 */
+	public DotArc.CompressorBehavior getCompressorBehavior() {
+		if (compressLZ) {
+			return DotArc.CompressorBehavior.COMPRESS;
+		}
+		return compressAuto ? DotArc.CompressorBehavior.AUTO : DotArc.CompressorBehavior.DO_NOT_COMPRESS;
+	}
+
 	public int getTargetEntryNum() {
 		try {
 			return Integer.parseInt(targetPath.split("/")[0]);
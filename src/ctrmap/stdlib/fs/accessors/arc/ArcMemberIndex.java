@@ -0,0 +1,79 @@
+package ctrmap.stdlib.fs.accessors.arc;
+
+import ctrmap.stdlib.fs.FSFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A snapshot of the member table of an ArcFile.
+ *
+ * The members are listed once through the ArcFileAccessor, member sizes are
+ * queried on first use. The index is bound to the length and modification
+ * time of the archive at the time it was built and is considered outdated once
+ * either of them changes.
+ */
+class ArcMemberIndex {
+
+	private final Map<String, FSFile> members = new LinkedHashMap<>();
+	private final NavigableMap<String, FSFile> sortedMembers = new TreeMap<>();
+	private final Map<String, Integer> sizes = new ConcurrentHashMap<>();
+
+	private final int sourceLength;
+	private final long sourceLastModified;
+
+	public ArcMemberIndex(ArcFile arc, ArcFileAccessor accessor) {
+		FSFile source = arc.getSource();
+		sourceLength = source.length();
+		sourceLastModified = source.lastModified();
+		for (FSFile member : accessor.getArcFiles(arc)) {
+			String name = getMemberName(member);
+			members.put(name, member);
+			sortedMembers.put(name, member);
+		}
+	}
+
+	private static String getMemberName(FSFile member) {
+		if (member instanceof ArcFileMember) {
+			return ((ArcFileMember) member).getPathInArc();
+		}
+		return member.getName();
+	}
+
+	public boolean isUpToDate(FSFile source) {
+		return source.length() == sourceLength && source.lastModified() == sourceLastModified;
+	}
+
+	public FSFile getMember(String name) {
+		return members.get(name);
+	}
+
+	public List<FSFile> getMembers() {
+		return new ArrayList<>(members.values());
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	public List<FSFile> getMembersUnder(String path) {
+		String prefix = path + "/";
+		//All names starting with the prefix sort between it and the prefix with the next separator character
+		return new ArrayList<>(sortedMembers.subMap(prefix, true, path + (char) ('/' + 1), false).values());
+	}
+
+	public int getMemberSize(ArcFile arc, ArcFileAccessor accessor, String name) {
+		Integer size = sizes.get(name);
+		if (size == null) {
+			size = accessor.getDataSizeForArcMember(arc, name);
+			if (members.containsKey(name)) {
+				sizes.put(name, size);
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,370 @@
+package ctrmap.stdlib.fs.accessors.io;
+
+import ctrmap.stdlib.fs.FSFile;
+import ctrmap.stdlib.io.base.iface.IOStream;
+import ctrmap.stdlib.io.base.iface.WriteableStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An IOStream that reads unmodified data from a base file and keeps written
+ * blocks in memory. The target file is only written on close, and only if the
+ * contents actually differ from the base file.
+ *
+ * Once the written blocks exceed a memory limit, they are moved to a
+ * temporary spill file, so that rewriting a large file does not hold all of
+ * it on the heap.
+ */
+public class CopyOnWriteIOStream implements IOStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 65536;
+	public static final int DEFAULT_MAX_DIRTY_BYTES = 16 * 1024 * 1024;
+
+	private final FSFile baseFile;
+	private final FSFile targetFile;
+
+	private final int blockSize;
+	private final int maxDirtyBlocks;
+	private final Map<Integer, byte[]> dirtyBlocks = new HashMap<>();
+
+	//Written blocks that have been moved out of memory, by their slot in the spill file
+	private final Map<Integer, Integer> spilledBlocks = new HashMap<>();
+	private File spillFile;
+	private RandomAccessFile spill;
+
+	private IOStream baseIO;
+	private final int baseLength;
+
+	private int position = 0;
+	private int length;
+
+	private boolean materialized = false;
+
+	private byte[] cleanBlock;
+	private int cleanBlockIndex = -1;
+
+	/**
+	 * Creates a copy-on-write stream with the default block size.
+	 *
+	 * @param baseFile The file to read unmodified data from.
+	 * @param targetFile The file to write the result into.
+	 */
+	public CopyOnWriteIOStream(FSFile baseFile, FSFile targetFile) {
+		this(baseFile, targetFile, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Creates a copy-on-write stream.
+	 *
+	 * @param baseFile The file to read unmodified data from.
+	 * @param targetFile The file to write the result into.
+	 * @param blockSize Size of a copy-on-write block.
+	 */
+	public CopyOnWriteIOStream(FSFile baseFile, FSFile targetFile, int blockSize) {
+		this(baseFile, targetFile, blockSize, DEFAULT_MAX_DIRTY_BYTES);
+	}
+
+	/**
+	 * Creates a copy-on-write stream.
+	 *
+	 * @param baseFile The file to read unmodified data from.
+	 * @param targetFile The file to write the result into.
+	 * @param blockSize Size of a copy-on-write block.
+	 * @param maxDirtyBytes Amount of written data to keep in memory before
+	 * moving it to a spill file.
+	 */
+	public CopyOnWriteIOStream(FSFile baseFile, FSFile targetFile, int blockSize, int maxDirtyBytes) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size can not be 0!");
+		}
+		this.baseFile = baseFile;
+		this.targetFile = targetFile;
+		this.blockSize = blockSize;
+		maxDirtyBlocks = Math.max(1, maxDirtyBytes / blockSize);
+		baseLength = baseFile.exists() ? baseFile.length() : 0;
+		length = baseLength;
+	}
+
+	/**
+	 * Checks if the target file was written on close.
+	 *
+	 * @return True if the stream has been closed with changes to the base
+	 * data.
+	 */
+	public boolean isMaterialized() {
+		return materialized;
+	}
+
+	private IOStream getBaseIO() {
+		if (baseIO == null) {
+			baseIO = baseFile.getIO();
+		}
+		return baseIO;
+	}
+
+	private void readBase(int pos, byte[] dest, int off, int len) throws IOException {
+		int baseLen = Math.max(0, Math.min(len, baseLength - pos));
+		if (baseLen > 0) {
+			IOStream io = getBaseIO();
+			io.seek(pos);
+			int done = 0;
+			while (done < baseLen) {
+				int r = io.read(dest, off + done, baseLen - done);
+				if (r <= 0) {
+					break;
+				}
+				done += r;
+			}
+			baseLen = done;
+		}
+		Arrays.fill(dest, off + baseLen, off + len, (byte) 0);
+	}
+
+	/**
+	 * Reads a block that is not in memory, either from the spill file or from
+	 * the base data.
+	 */
+	private void readStoredBlock(int blockIndex, byte[] dest) throws IOException {
+		Integer slot = spilledBlocks.get(blockIndex);
+		if (slot != null) {
+			spill.seek((long) slot * blockSize);
+			spill.readFully(dest, 0, blockSize);
+		} else {
+			readBase(blockIndex * blockSize, dest, 0, blockSize);
+		}
+	}
+
+	private byte[] getDirtyBlock(int blockIndex) throws IOException {
+		byte[] block = dirtyBlocks.get(blockIndex);
+		if (block == null) {
+			if (blockIndex == cleanBlockIndex) {
+				//The buffered clean block becomes the dirty block, no need to read it again
+				block = cleanBlock;
+				cleanBlock = null;
+				cleanBlockIndex = -1;
+			} else {
+				block = new byte[blockSize];
+				readStoredBlock(blockIndex, block);
+			}
+			dirtyBlocks.put(blockIndex, block);
+		}
+		return block;
+	}
+
+	private void spillIfOverLimit() throws IOException {
+		if (dirtyBlocks.size() <= maxDirtyBlocks) {
+			return;
+		}
+		if (spill == null) {
+			spillFile = File.createTempFile("cowio", ".tmp");
+			spillFile.deleteOnExit();
+			spill = new RandomAccessFile(spillFile, "rw");
+		}
+		for (Map.Entry<Integer, byte[]> e : dirtyBlocks.entrySet()) {
+			Integer slot = spilledBlocks.get(e.getKey());
+			if (slot == null) {
+				slot = spilledBlocks.size();
+				spilledBlocks.put(e.getKey(), slot);
+			}
+			spill.seek((long) slot * blockSize);
+			spill.write(e.getValue());
+		}
+		dirtyBlocks.clear();
+	}
+
+	/**
+	 * Gets a block that is not in memory, buffering it so that small reads do
+	 * not have to seek in the base stream or the spill file.
+	 *
+	 * @param blockIndex Index of the block.
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] getCleanBlock(int blockIndex) throws IOException {
+		if (blockIndex != cleanBlockIndex) {
+			if (cleanBlock == null) {
+				cleanBlock = new byte[blockSize];
+			}
+			cleanBlockIndex = -1;
+			readStoredBlock(blockIndex, cleanBlock);
+			cleanBlockIndex = blockIndex;
+		}
+		return cleanBlock;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position >= length) {
+			throw new EOFException("Tried to read at position " + Integer.toHexString(position) + ", but stream is only " + Integer.toHexString(length) + " bytes!");
+		}
+		int blockIndex = position / blockSize;
+		byte[] block = dirtyBlocks.get(blockIndex);
+		if (block == null) {
+			block = getCleanBlock(blockIndex);
+		}
+		int value = block[position % blockSize] & 0xFF;
+		position++;
+		return value;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		len = Math.min(len, length - position);
+		if (len <= 0) {
+			return -1;
+		}
+		int done = 0;
+		while (done < len) {
+			int blockIndex = position / blockSize;
+			int inBlock = position % blockSize;
+			int count = Math.min(len - done, blockSize - inBlock);
+			byte[] block = dirtyBlocks.get(blockIndex);
+			if (block == null && blockIndex == cleanBlockIndex) {
+				block = cleanBlock;
+			}
+			if (block != null) {
+				System.arraycopy(block, inBlock, b, off + done, count);
+			} else if (count < blockSize || spilledBlocks.containsKey(blockIndex)) {
+				System.arraycopy(getCleanBlock(blockIndex), inBlock, b, off + done, count);
+			} else {
+				readBase(position, b, off + done, count);
+			}
+			position += count;
+			done += count;
+		}
+		return done;
+	}
+
+	@Override
+	public int skipBytes(int amount) throws IOException {
+		amount = Math.max(0, Math.min(amount, length - position));
+		position += amount;
+		return amount;
+	}
+
+	@Override
+	public void write(int i) throws IOException {
+		byte[] block = getDirtyBlock(position / blockSize);
+		block[position % blockSize] = (byte) i;
+		position++;
+		updateLength();
+		spillIfOverLimit();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int inBlock = position % blockSize;
+			int count = Math.min(len, blockSize - inBlock);
+			byte[] block = getDirtyBlock(position / blockSize);
+			System.arraycopy(b, off, block, inBlock, count);
+			position += count;
+			off += count;
+			len -= count;
+			spillIfOverLimit();
+		}
+		updateLength();
+	}
+
+	private void updateLength() {
+		if (position > length) {
+			length = position;
+		}
+	}
+
+	@Override
+	public int getPosition() throws IOException {
+		return position;
+	}
+
+	@Override
+	public void seek(int position) throws IOException {
+		if (position < 0) {
+			throw new EOFException("Negative seek offset ! ! " + Integer.toHexString(position));
+		}
+		this.position = position;
+	}
+
+	@Override
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Checks if any written block differs from the base data.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean hasChanges() throws IOException {
+		if (length != baseLength) {
+			return true;
+		}
+		byte[] baseBlock = new byte[blockSize];
+		for (Map.Entry<Integer, byte[]> e : dirtyBlocks.entrySet()) {
+			readBase(e.getKey() * blockSize, baseBlock, 0, blockSize);
+			if (!Arrays.equals(baseBlock, e.getValue())) {
+				return true;
+			}
+		}
+		byte[] spilledBlock = new byte[blockSize];
+		for (int blockIndex : spilledBlocks.keySet()) {
+			if (!dirtyBlocks.containsKey(blockIndex)) {
+				readStoredBlock(blockIndex, spilledBlock);
+				readBase(blockIndex * blockSize, baseBlock, 0, blockSize);
+				if (!Arrays.equals(baseBlock, spilledBlock)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void materialize() throws IOException {
+		WriteableStream out = targetFile.getOutputStream();
+		byte[] buf = new byte[blockSize];
+		for (int blockStart = 0, blockIndex = 0; blockStart < length; blockStart += blockSize, blockIndex++) {
+			int count = Math.min(blockSize, length - blockStart);
+			byte[] block = dirtyBlocks.get(blockIndex);
+			if (block == null) {
+				block = buf;
+				if (spilledBlocks.containsKey(blockIndex)) {
+					readStoredBlock(blockIndex, block);
+				} else {
+					readBase(blockStart, block, 0, count);
+				}
+			}
+			out.write(block, 0, count);
+		}
+		out.close();
+		materialized = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!materialized && hasChanges()) {
+				materialize();
+			}
+		} finally {
+			dirtyBlocks.clear();
+			spilledBlocks.clear();
+			cleanBlock = null;
+			cleanBlockIndex = -1;
+			if (spill != null) {
+				spill.close();
+				spill = null;
+				spillFile.delete();
+			}
+			if (baseIO != null) {
+				baseIO.close();
+				baseIO = null;
+			}
+		}
+	}
+}
@@ -1,37 +1,80 @@
 package ctrmap.stdlib.fs.accessors.io;
 
+import ctrmap.stdlib.fs.FSFile;
 import ctrmap.stdlib.fs.FSUtil;
 import ctrmap.stdlib.fs.VFSFile;
-import ctrmap.stdlib.fs.accessors.DiskFile;
+import ctrmap.stdlib.io.base.iface.IOStream;
 import ctrmap.stdlib.io.base.impl.IOStreamWrapper;
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class MonitoredFSIO extends IOStreamWrapper {
 
 	private VFSFile vfsf;
+	private final FSFile target;
 
 	public MonitoredFSIO(VFSFile vfsf) {
 		super(null);
-		if (vfsf.getOvFile().isDirectory()) {
-			io = vfsf.getBaseFile().getIO();
-		} else {
-			io = vfsf.getOvFile().getIO();
-		}
+		boolean overlayLayer = !vfsf.getOvFile().isDirectory();
+		target = overlayLayer ? vfsf.getOvFile() : vfsf.getBaseFile();
+		io = target.getIO();
+		//Only tracked once the stream is open, so that a failed open does not leave the write in flight
+		vfsf.getVFS().beginOwnWrite(vfsf.getPath(), overlayLayer);
 		this.vfsf = vfsf;
 
-		if (!vfsf.getOvFile().exists()) {
-			vfsf.getVFS().notifyOvFsNewFileInit(vfsf.getPath());
+		try {
+			if (!vfsf.getOvFile().exists()) {
+				vfsf.getVFS().notifyOvFsNewFileInit(vfsf.getPath());
+			}
+		} catch (RuntimeException ex) {
+			try {
+				io.close();
+			} catch (IOException ex1) {
+				Logger.getLogger(MonitoredFSIO.class.getName()).log(Level.SEVERE, null, ex1);
+			} finally {
+				vfsf.getVFS().endOwnWrite(vfsf.getPath(), overlayLayer, target);
+			}
+			throw ex;
 		}
 	}
 
+	/**
+	 * Creates a monitored IO handle of a VFSFile using a custom IOStream, such
+	 * as a CopyOnWriteIOStream to the OvFS file.
+	 *
+	 * @param vfsf The VFSFile.
+	 * @param io The IOStream to use.
+	 */
+	public MonitoredFSIO(VFSFile vfsf, IOStream io) {
+		super(io);
+		this.vfsf = vfsf;
+		target = vfsf.getOvFile();
+		vfsf.getVFS().beginOwnWrite(vfsf.getPath(), true);
+	}
+
 	@Override
 	public void close() throws IOException {
-		super.close();
+		Lock l = vfsf.getVFS().getPathLock(vfsf.getPath()).writeLock();
+		l.lock();
+		try {
+			try {
+				super.close();
+			} finally {
+				vfsf.getVFS().endOwnWrite(vfsf.getPath(), target == vfsf.getOvFile(), target);
+			}
+			vfsf.getVFS().invalidateIndex(vfsf.getPath());
 
-		if (vfsf.getVFS().isFileChangeBlacklisted(vfsf.getPath())) {
-			if (!FSUtil.fileCmp(vfsf.getBaseFile(), vfsf.getOvFile())) {
-				vfsf.getVFS().notifyFileChange(vfsf.getPath());
+			if (vfsf.getVFS().isFileChangeBlacklisted(vfsf.getPath())) {
+				if (!FSUtil.fileCmp(vfsf.getBaseFile(), vfsf.getOvFile())) {
+					vfsf.getVFS().notifyFileChange(vfsf.getPath());
+				} else {
+					vfsf.getVFS().notifyOvFsFileUnchanged(vfsf.getPath(), vfsf.getOvFile());
+				}
 			}
+		} finally {
+			l.unlock();
 		}
 	}
 }
@@ -1,42 +1,99 @@
 package ctrmap.stdlib.fs.accessors.io;
 
-import ctrmap.stdlib.fs.FSUtil;
+import ctrmap.stdlib.crypto.ContentHash;
+import ctrmap.stdlib.fs.FSFile;
 import ctrmap.stdlib.fs.VFSFile;
 import ctrmap.stdlib.io.base.impl.WriteableWrapper;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class MonitoredFSOutputStream extends WriteableWrapper {
 
 	private VFSFile vfsf;
+	private final FSFile target;
+
+	private final MessageDigest digest = ContentHash.createDigest();
+	private int writtenLength = 0;
 
 	public MonitoredFSOutputStream(VFSFile vfsf) {
 		super(null);
-		if (vfsf.getOvFile().isDirectory()) {
-			out = vfsf.getBaseFile().getOutputStream();
-		} else {
-			out = vfsf.getOvFile().getOutputStream();
-		}
+		boolean overlayLayer = !vfsf.getOvFile().isDirectory();
+		target = overlayLayer ? vfsf.getOvFile() : vfsf.getBaseFile();
+		out = target.getOutputStream();
+		//Only tracked once the stream is open, so that a failed open does not leave the write in flight
+		vfsf.getVFS().beginOwnWrite(vfsf.getPath(), overlayLayer);
 		this.vfsf = vfsf;
 
-		if (!vfsf.getOvFile().exists()) {
-			vfsf.getVFS().notifyOvFsNewFileInit(vfsf.getPath());
+		try {
+			if (!vfsf.getOvFile().exists()) {
+				vfsf.getVFS().notifyOvFsNewFileInit(vfsf.getPath());
+			}
+		} catch (RuntimeException ex) {
+			try {
+				out.close();
+			} catch (IOException ex1) {
+				Logger.getLogger(MonitoredFSOutputStream.class.getName()).log(Level.SEVERE, null, ex1);
+			} finally {
+				vfsf.getVFS().endOwnWrite(vfsf.getPath(), overlayLayer, target);
+			}
+			throw ex;
 		}
 	}
 
+	@Override
+	public void write(int i) throws IOException {
+		out.write(i);
+		digest.update((byte) i);
+		writtenLength++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		digest.update(b, off, len);
+		writtenLength += len;
+	}
+
 	@Override
 	public void close() throws IOException {
-		out.close();
-		if (vfsf.getVFS().isFileChangeBlacklisted(vfsf.getPath())) {
-			System.out.println("File " + vfsf + " is in the blacklist, checking for changes.");
-			if (!FSUtil.fileCmp(vfsf.getBaseFile(), vfsf.getOvFile())) {
-				System.out.println("File " + vfsf + " has changed. Removing from blacklist.");
-				int baseLen = vfsf.getBaseFile().length();
-				int ovLen = vfsf.getOvFile().length();
-				if (baseLen != ovLen){
-					System.out.println("(Length difference - BaseFS: " + baseLen + " / OvFS: " + ovLen + ")");
+		Lock l = vfsf.getVFS().getPathLock(vfsf.getPath()).writeLock();
+		l.lock();
+		try {
+			try {
+				out.close();
+			} finally {
+				vfsf.getVFS().endOwnWrite(vfsf.getPath(), target == vfsf.getOvFile(), target);
+			}
+			vfsf.getVFS().invalidateIndex(vfsf.getPath());
+			if (vfsf.getVFS().isFileChangeBlacklisted(vfsf.getPath())) {
+				System.out.println("File " + vfsf + " is in the blacklist, checking for changes.");
+				//The written data is hashed on the fly, so only the (cached) BaseFS hash is needed to detect changes
+				FSFile baseFile = vfsf.getBaseFile();
+				boolean changed;
+				if (baseFile == null || !baseFile.isFile()) {
+					changed = true;
+				} else {
+					int baseLen = baseFile.length();
+					if (baseLen != writtenLength) {
+						System.out.println("(Length difference - BaseFS: " + baseLen + " / OvFS: " + writtenLength + ")");
+						changed = true;
+					} else {
+						String writtenHash = ContentHash.toHexString(digest.digest());
+						changed = !writtenHash.equals(vfsf.getVFS().getBaseFileHash(vfsf.getPath(), baseFile));
+					}
+				}
+				if (changed) {
+					System.out.println("File " + vfsf + " has changed. Removing from blacklist.");
+					vfsf.getVFS().notifyFileChange(vfsf.getPath());
+				} else {
+					vfsf.getVFS().notifyOvFsFileUnchanged(vfsf.getPath(), vfsf.getOvFile());
 				}
-				vfsf.getVFS().notifyFileChange(vfsf.getPath());
 			}
+		} finally {
+			l.unlock();
 		}
 	}
 }
@@ -14,7 +14,19 @@ public class FileStream extends RandomAccessFile implements IOStream {
 	private File file;
 
 	public FileStream(File file) throws FileNotFoundException {
-		super(file, "rw");
+		this(file, false);
+	}
+
+	/**
+	 * Opens a file stream.
+	 *
+	 * @param file The file to open.
+	 * @param readOnly If true, the file is opened for reading only and any
+	 * write throws an IOException.
+	 * @throws FileNotFoundException
+	 */
+	public FileStream(File file, boolean readOnly) throws FileNotFoundException {
+		super(file, readOnly ? "r" : "rw");
 
 		this.file = file;
 	}
@@ -27,6 +39,20 @@ public class FileStream extends RandomAccessFile implements IOStream {
 			throw new RuntimeException("Could not find file " + file + "; FileStream can not be created!");
 		}
 	}
+
+	/**
+	 * Opens a file stream for reading only.
+	 *
+	 * @param file The file to open.
+	 * @return The stream, or null if the file does not exist.
+	 */
+	public static FileStream createReadOnly(File file) {
+		try {
+			return new FileStream(file, true);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
 	
 	@Override
 	public synchronized int read() throws IOException {
@@ -27,7 +27,8 @@ public class MemoryStream implements IOStream {
 
 	protected void ensureCapacity(int cap) {
 		if (cap > buffer.length) {
-			int newCapacity = buffer.length;
+			//An empty buffer would never grow by doubling
+			int newCapacity = Math.max(buffer.length, 16);
 
 			while (newCapacity < cap) {
 				newCapacity *= 2;
@@ -0,0 +1,87 @@
+package ctrmap.stdlib.thread;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read/write locks assigned to keys by their hash code. Keys
+ * sharing a stripe share a lock, which bounds the memory used for locking an
+ * unbounded number of keys.
+ */
+public class StripedReadWriteLock {
+
+	private final ReadWriteLock[] stripes;
+
+	/**
+	 * Creates a striped lock.
+	 *
+	 * @param stripeCount Number of locks to distribute the keys between.
+	 */
+	public StripedReadWriteLock(int stripeCount) {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("Stripe count can not be 0!");
+		}
+		stripes = new ReadWriteLock[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	private int getStripeIndex(Object key) {
+		int h = key == null ? 0 : key.hashCode();
+		h ^= (h >>> 16);
+		return Math.floorMod(h, stripes.length);
+	}
+
+	/**
+	 * Gets the lock of a key.
+	 *
+	 * @param key The key.
+	 * @return
+	 */
+	public ReadWriteLock get(Object key) {
+		return stripes[getStripeIndex(key)];
+	}
+
+	/**
+	 * Acquires the write locks of multiple keys in a consistent order, so that
+	 * concurrent callers can not deadlock.
+	 *
+	 * @param keys The keys to lock.
+	 * @return The acquired locks, to be passed to unlockAll.
+	 */
+	public Lock[] lockAllForWrite(Object... keys) {
+		boolean[] used = new boolean[stripes.length];
+		for (Object key : keys) {
+			used[getStripeIndex(key)] = true;
+		}
+		int count = 0;
+		for (boolean u : used) {
+			if (u) {
+				count++;
+			}
+		}
+		Lock[] locks = new Lock[count];
+		int idx = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			if (used[i]) {
+				locks[idx] = stripes[i].writeLock();
+				locks[idx].lock();
+				idx++;
+			}
+		}
+		return locks;
+	}
+
+	/**
+	 * Releases locks acquired using lockAllForWrite.
+	 *
+	 * @param locks The locks.
+	 */
+	public static void unlockAll(Lock[] locks) {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+}